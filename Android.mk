@@ -24,5 +24,22 @@ LOCAL_PACKAGE_NAME := CMAppsChanger
 
 include $(BUILD_PACKAGE)
 
+# The copy engine without the UI, for running plans on a plain JVM:
+#   java -jar $ANDROID_HOST_OUT/framework/CMAppsChangerBatch.jar --shell /bin/sh plan
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, batch/src) \
+    $(filter-out %/AppListAdapter.java %/FileCopier.java %/InventoryLoader.java \
+        %/TypeAppFresh.java, \
+        $(call all-java-files-under, src))
+
+LOCAL_JAR_MANIFEST := batch/manifest.txt
+
+LOCAL_MODULE := CMAppsChangerBatch
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
 # Use the folloing include to make our test apk.
 include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs a {@link BatchPlan} without the app. Log lines go to stderr; stdout gets one
+ * tab-separated line per entry, <code>entry name status digest error</code>, followed by
+ * a <code>job</code> summary and a <code>reboot</code> line if the device needs one.
+ * <p>
+ * Usage: <code>java -jar CMAppsChangerBatch.jar [--shell command] [--verbose]
+ * plan</code>
+ * <p>
+ * Root commands go to <code>su</code> unless <code>--shell</code> names another shell,
+ * such as <code>/bin/sh</code> to run a plan on a desktop.
+ */
+public class BatchMain {
+    public static final int EXIT_OK              = 0;
+    public static final int EXIT_FAILED          = 1;
+    public static final int EXIT_USAGE           = 2;
+    public static final int EXIT_NEED_ROOT       = 3;
+    public static final int EXIT_REMOUNT_FAILED  = 4;
+    public static final int EXIT_ARCHIVE_FAILED  = 5;
+    public static final int EXIT_PREFLIGHT       = 6;
+    public static final int EXIT_STORE_FAILED    = 7;
+
+    // by CopyResult status
+    private static final String[] STATUS_NAMES = {
+        "pending", "copied", "skipped", "failed", "unchanged"
+    };
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a plan as <code>main</code> would, but returns the exit code.
+     *
+     * @param args Command line arguments.
+     * @return Exit code.
+     */
+    public static int run(String[] args) {
+        String shellCommand = null;
+        boolean verbose = false;
+        File planFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--shell") && (i + 1 < args.length)) {
+                shellCommand = args[++i];
+            } else if (args[i].equals("--verbose")) {
+                verbose = true;
+            } else if ((planFile == null) && !args[i].startsWith("--")) {
+                planFile = new File(args[i]);
+            } else {
+                System.err.println("Unknown argument " + args[i]);
+                return EXIT_USAGE;
+            }
+        }
+        if (planFile == null) {
+            System.err.println("Usage: BatchMain [--shell command] [--verbose] plan");
+            return EXIT_USAGE;
+        }
+
+        BatchPlan plan;
+        try {
+            plan = BatchPlan.read(planFile);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        RootShell shell = new RootShell((shellCommand != null)
+                ? new String[] { shellCommand } : null);
+        CopyJob job = new CopyJob(shell, new ConsoleListener(verbose));
+        RemountManager remount = new RemountManager(shell, "/system");
+        job.setRemountManager(remount);
+        try {
+            plan.configure(job, new UsableSpaceProbe());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        Metrics metrics = Metrics.begin(plan.getName());
+        metrics.set("workers", Integer.toString(job.getParallelism()));
+        int error;
+        boolean readOnly;
+        try {
+            error = job.run(plan.getSources(), plan.getDestinations());
+        } finally {
+            // the grace period timer would never fire, the process exits first
+            readOnly = remount.flush();
+            if (!readOnly) {
+                System.err.println("E " + remount.getLastError());
+            }
+            if (plan.getTraceDir() != null) {
+                job.recordMetrics(metrics);
+                metrics.finish();
+                try {
+                    System.err.println("Trace written to " + metrics.write(plan.getTraceDir()));
+                } catch (IOException e) {
+                    System.err.println("Could not write trace: " + e.toString());
+                }
+            }
+            shell.close();
+        }
+
+        CopyResult result = job.getResult();
+        for (int i = 0; i < result.size(); i++) {
+            String digest = result.getDigest(i);
+            String message = result.getError(i);
+            System.out.println("entry\t" + result.getName(i) + "\t"
+                    + STATUS_NAMES[result.getStatus(i)] + "\t"
+                    + ((digest != null) ? digest : "") + "\t"
+                    + ((message != null) ? message.replace('\t', ' ').replace('\n', ' ') : ""));
+        }
+        CopyProgress bytes = job.getProgress();
+        System.out.println("job\t" + plan.getName() + "\t"
+                + result.count(CopyResult.COPIED) + " copied\t"
+                + result.count(CopyResult.UNCHANGED) + " unchanged\t"
+                + result.count(CopyResult.FAILED) + " failed\t"
+                + bytes.getDone() + " bytes");
+        if (job.isRebootNeeded()) {
+            System.out.println("reboot");
+        }
+
+        switch (error) {
+        case CopyJob.ERROR_NEED_ROOT:
+            return EXIT_NEED_ROOT;
+        case CopyJob.ERROR_REMOUNT:
+            return EXIT_REMOUNT_FAILED;
+        case CopyJob.ERROR_ARCHIVE:
+            return EXIT_ARCHIVE_FAILED;
+        case CopyJob.ERROR_STORE:
+            return EXIT_STORE_FAILED;
+        }
+        if (!readOnly) {
+            // /system was left writable
+            return EXIT_REMOUNT_FAILED;
+        }
+        PreflightValidator.Report report = job.getPreflightReport();
+        SpacePlanner.Plan space = job.getSpacePlan();
+        if (((report != null) && !report.isPassed())
+                || ((space != null) && !space.isPassed())) {
+            return EXIT_PREFLIGHT;
+        }
+        return (result.count(CopyResult.FAILED) > 0) ? EXIT_FAILED : EXIT_OK;
+    }
+
+    /**
+     * Writes log lines, and with <code>--verbose</code> progress too, to stderr.
+     */
+    private static class ConsoleListener implements CopyJob.Listener {
+        private final boolean verbose;
+
+        ConsoleListener(boolean verbose) {
+            this.verbose = verbose;
+        }
+
+        public void onFileStarted(String path) {
+            if (verbose) {
+                System.err.println("  " + path);
+            }
+        }
+
+        public void onProgress(CopyProgress copied) {
+            if (verbose && (copied.getTotal() > 0)) {
+                System.err.println("  " + copied.getDone() / 1024 + " of "
+                        + copied.getTotal() / 1024 + " KB");
+            }
+        }
+
+        public void onStage(int stage) {
+            System.err.println((stage == CopyJob.STAGE_PREFLIGHT)
+                    ? "Checking the plan" : "Restarting replaced apps");
+        }
+
+        public void onLog(boolean error, String message) {
+            System.err.println(error ? "E " + message : message);
+        }
+    }
+
+    /**
+     * Looks up free space through <code>java.io.File</code>, which a desktop JVM has.
+     */
+    private static class UsableSpaceProbe implements SpacePlanner.SpaceProbe {
+        public long getAvailable(String path) throws IOException {
+            long available = new File(path).getUsableSpace();
+            if ((available == 0) && !new File(path).exists()) {
+                throw new IOException("No such file system " + path);
+            }
+            return available;
+        }
+
+        public long getBlockSize(String path) {
+            // java.io.File doesn't tell, and 4K is what ext4 and most sdcards use
+            return 4096;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A backup, restore or apply written down as a plan file, so that it can be run without
+ * the app. A plan is a line of <code>cmac-plan 1</code> followed by one tab-separated
+ * directive per line:
+ * <pre>
+ * name            backup
+ * incremental
+ * parallelism     4
+ * verify          [readback]
+ * preflight
+ * recovery
+ * manifest        &lt;file&gt;  &lt;fingerprint&gt;
+ * archive-target  &lt;file&gt;  store|deflate
+ * archive-source  &lt;file&gt;
+ * store-target    &lt;dir&gt;  &lt;keep&gt;  &lt;fingerprint&gt;  [deltas]
+ * store-source    &lt;dir&gt;
+ * profile         &lt;file&gt;
+ * trace           &lt;dir&gt;
+ * journal         &lt;file&gt;
+ * copy            &lt;source&gt;  &lt;destination&gt;  [digest]
+ * </pre>
+ * Blank lines and lines starting with <code>#</code> are ignored. The options mean the
+ * same as the <code>CopyJob</code> setters of the same name; the digest of a copy is what
+ * the verifier holds it to. With a journal, a run that was cut short is resumed by running
+ * the same plan again.
+ */
+public class BatchPlan {
+    private static final String MAGIC = "cmac-plan 1";
+
+    private String name = "batch";
+    private boolean incremental = false;
+    private int parallelism = 0;
+    private boolean verify = false;
+    private boolean readback = false;
+    private boolean preflight = false;
+    private boolean recovery = false;
+    private File manifest = null;
+    private File archiveTarget = null;
+    private int archiveLevel = AppArchive.STORE;
+    private File archiveSource = null;
+    private File storeTarget = null;
+    private int keepGenerations = 0;
+    private boolean deltas = false;
+    private File storeSource = null;
+    private String fingerprint = null;
+    private File profile = null;
+    private File traceDir = null;
+    private File journal = null;
+    private final List<String> sources = new ArrayList<String>();
+    private final List<String> destinations = new ArrayList<String>();
+    private final List<String> digests = new ArrayList<String>();
+
+    /**
+     * Reads a plan file.
+     *
+     * @param file The plan.
+     * @return The plan.
+     * @throws IOException If the file could not be read or is not a valid plan.
+     */
+    public static BatchPlan read(File file) throws IOException {
+        BatchPlan plan = new BatchPlan();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"), 8192);
+        try {
+            if (!MAGIC.equals(in.readLine())) {
+                throw new IOException(file + " is not a plan");
+            }
+            String line;
+            int number = 1;
+            while ((line = in.readLine()) != null) {
+                number++;
+                if ((line.trim().length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    plan.parse(line.split("\t"));
+                } catch (RuntimeException e) {
+                    throw new IOException(file + ":" + number + ": bad directive \"" + line
+                            + "\"");
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (plan.sources.isEmpty()) {
+            throw new IOException(file + " has nothing to copy");
+        }
+        if ((plan.archiveTarget != null) && (plan.storeTarget != null)) {
+            throw new IOException(file + " backs up to both an archive and a store");
+        }
+        return plan;
+    }
+
+    private void parse(String[] fields) {
+        String directive = fields[0];
+        if (directive.equals("name")) {
+            name = fields[1];
+        } else if (directive.equals("incremental")) {
+            incremental = true;
+        } else if (directive.equals("parallelism")) {
+            parallelism = Integer.parseInt(fields[1]);
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism " + parallelism);
+            }
+        } else if (directive.equals("verify")) {
+            verify = true;
+            readback = (fields.length > 1) && fields[1].equals("readback");
+        } else if (directive.equals("preflight")) {
+            preflight = true;
+        } else if (directive.equals("recovery")) {
+            recovery = true;
+        } else if (directive.equals("manifest")) {
+            manifest = new File(fields[1]);
+            fingerprint = fields[2];
+        } else if (directive.equals("archive-target")) {
+            archiveTarget = new File(fields[1]);
+            archiveLevel = fields[2].equals("store")
+                    ? AppArchive.STORE : AppArchive.DEFAULT_COMPRESSION;
+        } else if (directive.equals("archive-source")) {
+            archiveSource = new File(fields[1]);
+        } else if (directive.equals("store-target")) {
+            storeTarget = new File(fields[1]);
+            keepGenerations = Integer.parseInt(fields[2]);
+            fingerprint = fields[3];
+            deltas = (fields.length > 4) && fields[4].equals("deltas");
+        } else if (directive.equals("store-source")) {
+            storeSource = new File(fields[1]);
+        } else if (directive.equals("profile")) {
+            profile = new File(fields[1]);
+        } else if (directive.equals("trace")) {
+            traceDir = new File(fields[1]);
+        } else if (directive.equals("journal")) {
+            journal = new File(fields[1]);
+        } else if (directive.equals("copy")) {
+            sources.add(fields[1]);
+            destinations.add(fields[2]);
+            digests.add((fields.length > 3) ? fields[3] : null);
+        } else {
+            throw new IllegalArgumentException(directive);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getTraceDir() {
+        return traceDir;
+    }
+
+    public String[] getSources() {
+        return sources.toArray(new String[sources.size()]);
+    }
+
+    public String[] getDestinations() {
+        return destinations.toArray(new String[destinations.size()]);
+    }
+
+    /**
+     * Sets a job up to carry out this plan.
+     *
+     * @param job   The job, not yet run.
+     * @param space Free space lookup for planning the copies.
+     * @throws IOException If the profile named by the plan could not be read, or its
+     *                      journal is from another plan.
+     */
+    public void configure(CopyJob job, SpacePlanner.SpaceProbe space)
+            throws IOException {
+        job.setSpaceProbe(space);
+        job.setIncremental(incremental);
+        if (parallelism > 0) {
+            job.setParallelism(parallelism);
+        }
+        if (verify) {
+            CopyVerifier verifier = new CopyVerifier(digests.toArray(new String[digests.size()]));
+            verifier.setReadback(readback);
+            job.setVerifier(verifier);
+        }
+        if (manifest != null) {
+            job.setManifest(manifest, fingerprint);
+        }
+        if (archiveTarget != null) {
+            job.setArchiveTarget(archiveTarget, archiveLevel);
+        }
+        if (archiveSource != null) {
+            job.setArchiveSource(archiveSource);
+        }
+        if (storeTarget != null) {
+            BackupStore store = new BackupStore(storeTarget);
+            store.setDeltas(deltas);
+            job.setStoreTarget(store, keepGenerations, fingerprint);
+        }
+        if (storeSource != null) {
+            job.setStoreSource(new BackupStore(storeSource));
+        }
+        if (journal != null) {
+            CopyJournal left = CopyJournal.read(journal);
+            if (left == null) {
+                job.setJournal(journal, name);
+            } else if (Arrays.equals(left.getSources(), getSources())
+                    && Arrays.equals(left.getDestinations(), getDestinations())) {
+                // the rest of the plan was set up the first time round
+                job.setResume(left);
+                return;
+            } else {
+                throw new IOException(journal + " is the journal of another plan");
+            }
+        }
+        if (profile != null) {
+            SelectionProfile selection = SelectionProfile.read(profile);
+            if (selection == null) {
+                throw new IOException("Could not read profile " + profile);
+            }
+            job.setProfile(selection, profile);
+        }
+
+        if (preflight || recovery) {
+            // what is installed now says which package each entry has to stay
+            ApkMetadata[] installed = new ApkMetadata[destinations.size()];
+            String[] packages = new String[installed.length];
+            for (int i = 0; i < installed.length; i++) {
+                try {
+                    installed[i] = ApkMetadata.read(new File(destinations.get(i)));
+                    packages[i] = installed[i].packageName;
+                } catch (IOException e) {
+                    // a new app, or one that can't be read; nothing to hold it to
+                }
+            }
+            job.setPreflight(packages);
+            if (recovery) {
+                job.setRecovery(installed);
+            }
+        }
+    }
+}
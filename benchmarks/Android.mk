@@ -0,0 +1,33 @@
+# Copyright 2012, The Android-x86 Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Benchmarks for the copy, shell and list model code, run on the host JVM:
+#   java -jar $ANDROID_HOST_OUT/framework/CMAppsChangerBenchmarks.jar --out reports
+
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := optional
+
+# everything in the app apart from the UI classes runs on a plain JVM
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(filter-out %/AppListAdapter.java %/FileCopier.java %/InventoryLoader.java \
+        %/TypeAppFresh.java, \
+        $(call all-java-files-under, ../src))
+
+LOCAL_JAR_MANIFEST := manifest.txt
+
+LOCAL_MODULE := CMAppsChangerBenchmarks
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.Arrays;
+
+/**
+ * One operation to time, run once per parameter value. The harness calls
+ * {@link #setUp(String)}, runs {@link #run()} repeatedly for a warm-up period so the JIT
+ * settles, then times every call for the measurement period, and finally calls
+ * {@link #tearDown()}.
+ */
+public abstract class Benchmark {
+    // keeps memory bounded for very fast operations
+    private static final int MAX_SAMPLES = 1000000;
+
+    private final String name;
+
+    /**
+     * Class constructor.
+     *
+     * @param name Name of the benchmark in reports.
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the parameter values to run with, such as file sizes or list lengths.
+     *
+     * @return Parameter values.
+     */
+    public abstract String[] getParams();
+
+    public void setUp(String param) throws Exception {
+    }
+
+    /**
+     * Runs the operation once.
+     *
+     * @throws Exception If the operation failed, which aborts the benchmark.
+     */
+    public abstract void run() throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Times the operation with one parameter value.
+     *
+     * @param param         Parameter value.
+     * @param warmupMillis  How long to run before timing.
+     * @param measureMillis How long to time for.
+     * @throws Exception If set-up or the operation failed.
+     * @return The timings.
+     */
+    public Result measure(String param, long warmupMillis, long measureMillis)
+            throws Exception {
+        setUp(param);
+        try {
+            long end = System.currentTimeMillis() + warmupMillis;
+            while (System.currentTimeMillis() < end) {
+                run();
+            }
+
+            long[] samples = new long[1024];
+            int count = 0;
+            end = System.currentTimeMillis() + measureMillis;
+            // at least a few samples, even for operations slower than the period
+            while ((System.currentTimeMillis() < end || count < 5) && count < MAX_SAMPLES) {
+                long start = System.nanoTime();
+                run();
+                long elapsed = System.nanoTime() - start;
+                if (count == samples.length) {
+                    long[] grown = new long[samples.length * 2];
+                    System.arraycopy(samples, 0, grown, 0, count);
+                    samples = grown;
+                }
+                samples[count++] = elapsed;
+            }
+            return new Result(name, param, samples, count);
+        } finally {
+            tearDown();
+        }
+    }
+
+    /**
+     * Timings of one benchmark and parameter value.
+     */
+    public static class Result {
+        public final String name;
+        public final String param;
+        public final int ops;
+        public final long meanNanos;
+        public final long p50Nanos;
+        public final long p99Nanos;
+
+        Result(String name, String param, long[] samples, int count) {
+            this.name = name;
+            this.param = param;
+            ops = count;
+            long[] sorted = new long[count];
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long sample : sorted) {
+                sum += sample;
+            }
+            meanNanos = sum / count;
+            p50Nanos = sorted[count / 2];
+            p99Nanos = sorted[Math.min(count - 1, count * 99 / 100)];
+        }
+
+        Result(String name, String param, int ops, long mean, long p50, long p99) {
+            this.name = name;
+            this.param = param;
+            this.ops = ops;
+            meanNanos = mean;
+            p50Nanos = p50;
+            p99Nanos = p99;
+        }
+
+        public double getOpsPerSecond() {
+            return (meanNanos == 0) ? 0 : 1e9 / meanNanos;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks on a plain JVM and writes a tab-separated report that can be
+ * compared against an earlier one.
+ * <p>
+ * Usage: <code>java -jar CMAppsChangerBenchmarks.jar [--filter text] [--warmup ms]
+ * [--time ms] [--out dir] [--baseline report.tsv]</code>
+ */
+public class BenchmarkMain {
+    private static final String REPORT_HEADER = "# cmac-bench 1";
+
+    public static void main(String[] args) throws Exception {
+        String filter = null;
+        long warmup = 1000;
+        long time = 2000;
+        File out = new File(".");
+        File baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--filter")) {
+                filter = args[++i];
+            } else if (args[i].equals("--warmup")) {
+                warmup = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--time")) {
+                time = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--out")) {
+                out = new File(args[++i]);
+            } else if (args[i].equals("--baseline")) {
+                baseline = new File(args[++i]);
+            } else {
+                System.err.println("Unknown argument " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        File scratch = new File(System.getProperty("java.io.tmpdir"), "cmac-bench");
+        scratch.mkdirs();
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new CopyBenchmark("copy.stream", CopyEngines.STREAM, false, scratch));
+        benchmarks.add(new CopyBenchmark("copy.channel", CopyEngines.CHANNEL, false, scratch));
+        benchmarks.add(new CopyBenchmark("copy.mapped", CopyEngines.MAPPED, false, scratch));
+        benchmarks.add(new CopyBenchmark("copy.stream.digest", CopyEngines.STREAM, true,
+                scratch));
+        benchmarks.add(new CopyBenchmark("copy.channel.digest", CopyEngines.CHANNEL, true,
+                scratch));
+        benchmarks.add(new CopyBenchmark("copy.mapped.digest", CopyEngines.MAPPED, true,
+                scratch));
+        benchmarks.add(new ShellBenchmark(ShellBenchmark.SPAWN, scratch));
+        benchmarks.add(new ShellBenchmark(ShellBenchmark.REUSE, scratch));
+        benchmarks.add(new ShellBenchmark(ShellBenchmark.SCRIPT, scratch));
+        benchmarks.add(new SelectionBenchmark(SelectionBenchmark.APPLY));
+        benchmarks.add(new SelectionBenchmark(SelectionBenchmark.MENU));
+        benchmarks.add(new SelectionBenchmark(SelectionBenchmark.NAIVE));
+        benchmarks.add(new RecoveryBenchmark());
+        benchmarks.add(new SpaceBenchmark(scratch));
+
+        Map<String, Benchmark.Result> previous = (baseline != null)
+                ? readReport(baseline) : new HashMap<String, Benchmark.Result>();
+        List<Benchmark.Result> results = new ArrayList<Benchmark.Result>();
+        for (Benchmark benchmark : benchmarks) {
+            if ((filter != null) && (benchmark.getName().indexOf(filter) < 0)) {
+                continue;
+            }
+            for (String param : benchmark.getParams()) {
+                Benchmark.Result result = benchmark.measure(param, warmup, time);
+                results.add(result);
+                print(result, previous.get(key(result.name, result.param)));
+            }
+        }
+
+        out.mkdirs();
+        File report = new File(out, "bench-" + System.currentTimeMillis() + ".tsv");
+        writeReport(report, results);
+        System.out.println("Report written to " + report);
+    }
+
+    private static void print(Benchmark.Result result, Benchmark.Result before) {
+        String line = String.format("%-20s %6s %12d ns/op %12d p50 %12d p99 %12.1f ops/s",
+                result.name, result.param, result.meanNanos, result.p50Nanos, result.p99Nanos,
+                result.getOpsPerSecond());
+        if ((before != null) && (before.meanNanos > 0)) {
+            // negative is faster
+            line += String.format(" %+7.1f%%",
+                    (result.meanNanos - before.meanNanos) * 100.0 / before.meanNanos);
+        }
+        System.out.println(line);
+    }
+
+    private static void writeReport(File file, List<Benchmark.Result> results)
+            throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println(REPORT_HEADER);
+            out.println("# java " + System.getProperty("java.version") + " "
+                    + System.getProperty("os.arch") + " "
+                    + Runtime.getRuntime().availableProcessors() + " cpus");
+            out.println("# name\tparam\tops\tmean_ns\tp50_ns\tp99_ns");
+            for (Benchmark.Result result : results) {
+                out.println(result.name + "\t" + result.param + "\t" + result.ops + "\t"
+                        + result.meanNanos + "\t" + result.p50Nanos + "\t" + result.p99Nanos);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, Benchmark.Result> readReport(File file) throws IOException {
+        Map<String, Benchmark.Result> results = new HashMap<String, Benchmark.Result>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line = in.readLine();
+            if ((line == null) || !line.equals(REPORT_HEADER)) {
+                throw new IOException(file + " is not a benchmark report");
+            }
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 6) {
+                    continue;
+                }
+                results.put(key(fields[0], fields[1]), new Benchmark.Result(fields[0],
+                        fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    private static String key(String name, String param) {
+        return name + "\t" + param;
+    }
+}
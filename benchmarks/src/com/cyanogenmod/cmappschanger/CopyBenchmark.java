@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Copies one file with a single {@link CopyEngine}, over a range of file sizes. Compare
+ * the engines at each size to check the thresholds in {@link CopyEngines}.
+ */
+public class CopyBenchmark extends Benchmark {
+    private static final String[] SIZES = { "16K", "64K", "1M", "4M", "16M" };
+
+    private final CopyEngine engine;
+    private final boolean digest;
+    private final File dir;
+    private File src = null;
+    private File dst = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param name   Name of the benchmark.
+     * @param engine Engine to copy with.
+     * @param digest Whether to digest while copying, as verified jobs do.
+     * @param dir    Scratch directory.
+     */
+    public CopyBenchmark(String name, CopyEngine engine, boolean digest, File dir) {
+        super(name);
+        this.engine = engine;
+        this.digest = digest;
+        this.dir = dir;
+    }
+
+    public String[] getParams() {
+        return SIZES;
+    }
+
+    @Override
+    public void setUp(String param) throws IOException {
+        src = createFile(dir, "src-" + param, parseSize(param));
+        dst = new File(dir, "dst-" + getName() + "-" + param);
+    }
+
+    public void run() throws IOException {
+        engine.copy(src, dst, null, digest);
+    }
+
+    @Override
+    public void tearDown() {
+        dst.delete();
+    }
+
+    /**
+     * Creates a file of random bytes, or reuses it if it is already there.
+     *
+     * @param dir  Directory to create it in.
+     * @param name File name.
+     * @param size Size in bytes.
+     * @throws IOException If the file could not be written.
+     * @return The file.
+     */
+    static File createFile(File dir, String name, long size) throws IOException {
+        File file = new File(dir, name);
+        if (file.length() == size) {
+            return file;
+        }
+        Random random = new Random(size);
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int)Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static long parseSize(String size) {
+        char unit = size.charAt(size.length() - 1);
+        long value = Long.parseLong(size.substring(0, size.length() - 1));
+        return (unit == 'M') ? value * 1024 * 1024 : value * 1024;
+    }
+}
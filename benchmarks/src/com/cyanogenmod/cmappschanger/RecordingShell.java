@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Shell} that runs nothing. Every command is recorded, and answered with the
+ * output set up for the first word of the command, or with no output at all.
+ */
+public class RecordingShell implements Shell {
+    private final List<String> commands = new ArrayList<String>();
+    private final Map<String, List<String>> outputs = new HashMap<String, List<String>>();
+
+    /**
+     * Sets what a command answers with.
+     *
+     * @param command First word of the command, such as <code>ps</code>.
+     * @param output  Output lines.
+     */
+    public void answer(String command, List<String> output) {
+        outputs.put(command, output);
+    }
+
+    public RootShell.Result run(String cmd) {
+        return run(cmd, null);
+    }
+
+    public RootShell.Result run(String cmd, RootShell.OutputListener listener) {
+        return run(cmd, listener, 0);
+    }
+
+    public synchronized RootShell.Result run(String cmd, RootShell.OutputListener listener,
+            long timeout) {
+        commands.add(cmd);
+        int space = cmd.indexOf(' ');
+        List<String> output = outputs.get((space < 0) ? cmd : cmd.substring(0, space));
+        if (output == null) {
+            output = new ArrayList<String>();
+        }
+        if (listener != null) {
+            for (String line : output) {
+                listener.onLine(line);
+            }
+        }
+        return new RootShell.Result(0, output);
+    }
+
+    /**
+     * Returns every command run so far.
+     *
+     * @return Commands, in the order they were run.
+     */
+    public synchronized List<String> getCommands() {
+        return commands;
+    }
+
+    public synchronized void clear() {
+        commands.clear();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What deciding between a restart and a reboot costs after an apply of 1 to 20 apps, on a
+ * device with 150 packages. The shell is a {@link RecordingShell} answering with canned
+ * <code>dumpsys</code> and <code>ps</code> output, so this measures parsing and planning,
+ * and checks that the expected commands are sent.
+ */
+public class RecoveryBenchmark extends Benchmark {
+    public static final String NAME = "recovery.plan";
+
+    private static final String[] COUNTS = { "1", "5", "20" };
+    private static final int PACKAGES = 150;
+
+    private final RecordingShell shell = new RecordingShell();
+    private int count = 0;
+
+    public RecoveryBenchmark() {
+        super(NAME);
+    }
+
+    public String[] getParams() {
+        return COUNTS;
+    }
+
+    @Override
+    public void setUp(String param) {
+        count = Integer.parseInt(param);
+        List<String> dump = new ArrayList<String>();
+        List<String> ps = new ArrayList<String>();
+        ps.add("USER     PID   PPID  VSIZE  RSS     WCHAN    PC         NAME");
+        for (int i = 0; i < PACKAGES; i++) {
+            dump.add("  Package [com.example.app" + i + "] (4a3b" + i + "):");
+            dump.add("    userId=" + (10000 + i) + " gids=[3003]");
+            dump.add("    codePath=/system/app/App" + i + ".apk");
+            dump.add("    versionCode=" + (i + 2) + " targetSdk=10");
+            ps.add("app_" + i + "    " + (1000 + i) + "  60    100000 20000 ffffffff 00000000 S "
+                    + "com.example.app" + i);
+        }
+        shell.answer("dumpsys", dump);
+        shell.answer("ps", ps);
+    }
+
+    public void run() throws Exception {
+        shell.clear();
+        RecoveryPlanner planner = new RecoveryPlanner(shell);
+        planner.setRescanInterval(0);
+        for (int i = 0; i < count; i++) {
+            String pkg = "com.example.app" + i;
+            planner.add("/system/app/App" + i + ".apk", new ApkMetadata(pkg, i + 1, null),
+                    new ApkMetadata(pkg, i + 2, null));
+        }
+        if (!planner.recover()) {
+            throw new IllegalStateException("expected a restart, not a reboot");
+        }
+        List<String> commands = shell.getCommands();
+        if ((commands.size() != 3) || !commands.get(2).startsWith("kill 1000")) {
+            throw new IllegalStateException("unexpected commands " + commands);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+/**
+ * The list model work done on every user action, at 50 to 500 apps, with a tenth of the
+ * apps changed. <code>apply</code> is what choosing apps and applying them costs on
+ * {@link AppSelection}; <code>menu</code> is the check <code>onPrepareOptionsMenu</code>
+ * runs every time the menu opens; <code>naive</code> finds the changes by comparing
+ * every path, for comparison with the bit set.
+ */
+public class SelectionBenchmark extends Benchmark {
+    public static final String APPLY = "selection.apply";
+    public static final String MENU = "selection.menu";
+    public static final String NAIVE = "selection.naive";
+
+    private static final String[] COUNTS = { "50", "100", "250", "500" };
+
+    private String[] apps = null;
+    private String[] picked = null;
+    private AppSelection selection = null;
+    private BackupManifest manifest = null;
+    // keeps the JIT from dropping the work
+    private int sink = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param name One of {@link #APPLY}, {@link #MENU} or {@link #NAIVE}.
+     */
+    public SelectionBenchmark(String name) {
+        super(name);
+    }
+
+    public String[] getParams() {
+        return COUNTS;
+    }
+
+    @Override
+    public void setUp(String param) {
+        int count = Integer.parseInt(param);
+        apps = new String[count];
+        picked = new String[count];
+        manifest = new BackupManifest(0, "fingerprint", true);
+        for (int i = 0; i < count; i++) {
+            apps[i] = "App" + i + ".apk";
+            picked[i] = (i % 10 == 0)
+                    ? "/sdcard/AppsChanger/" + apps[i] : "/system/app/" + apps[i];
+            manifest.add(new BackupManifest.Entry(apps[i], 1000000 + i, 0,
+                    "d41d8cd98f00b204e9800998ecf8427e"));
+        }
+        selection = new AppSelection(apps);
+        for (int i = 0; i < count; i++) {
+            selection.setPath(i, picked[i]);
+        }
+    }
+
+    public void run() {
+        if (getName().equals(APPLY)) {
+            selection.reset();
+            for (int i = 0; i < picked.length; i++) {
+                selection.setPath(i, picked[i]);
+            }
+            sink += selection.getChangedPositions().length;
+        } else if (getName().equals(MENU)) {
+            if (selection.hasChanges() && manifest.covers(apps)) {
+                sink++;
+            }
+        } else {
+            String[] paths = selection.getPaths();
+            for (int i = 0; i < paths.length; i++) {
+                if (!paths[i].equals("/system/app/" + apps[i])) {
+                    sink++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        if (sink == 42) {
+            System.out.print("");
+        }
+    }
+}
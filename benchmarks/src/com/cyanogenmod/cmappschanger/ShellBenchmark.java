@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Round trips through {@link RootShell}, with <code>/bin/sh</code> standing in for
+ * <code>su</code>. <code>spawn</code> starts a shell for every command, as the app did
+ * before it kept one session open; <code>reuse</code> sends every command to one
+ * long-lived shell; <code>script</code> copies a file through a {@link CopyScript}.
+ */
+public class ShellBenchmark extends Benchmark {
+    public static final String SPAWN = "shell.spawn";
+    public static final String REUSE = "shell.reuse";
+    public static final String SCRIPT = "shell.script";
+
+    private static final String[] SHELL = { "/bin/sh" };
+
+    private final File dir;
+    private RootShell shell = null;
+    private File src = null;
+    private File dst = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param name One of {@link #SPAWN}, {@link #REUSE} or {@link #SCRIPT}.
+     * @param dir  Scratch directory for the script copies.
+     */
+    public ShellBenchmark(String name, File dir) {
+        super(name);
+        this.dir = dir;
+    }
+
+    public String[] getParams() {
+        return getName().equals(SCRIPT)
+                ? new String[] { "64K", "1M" } : new String[] { "true" };
+    }
+
+    @Override
+    public void setUp(String param) throws IOException {
+        if (getName().equals(SCRIPT)) {
+            src = CopyBenchmark.createFile(dir, "src-" + param,
+                    CopyBenchmark.parseSize(param));
+            dst = new File(dir, "dst-script-" + param);
+        }
+        if (!getName().equals(SPAWN)) {
+            shell = new RootShell(SHELL);
+        }
+    }
+
+    public void run() throws IOException {
+        if (getName().equals(SPAWN)) {
+            RootShell once = new RootShell(SHELL);
+            try {
+                check(once.run("true"));
+            } finally {
+                once.close();
+            }
+        } else if (getName().equals(REUSE)) {
+            check(shell.run("true"));
+        } else {
+            CopyScript script = new CopyScript(1);
+            script.add(0, src.getPath(), dst.getPath());
+            CopyResult result = new CopyResult(new String[] { dst.getName() });
+            script.run(shell, result, null);
+            if (result.getStatus(0) != CopyResult.COPIED) {
+                throw new IOException(result.getError(0));
+            }
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        if (shell != null) {
+            shell.close();
+            shell = null;
+        }
+        if (dst != null) {
+            dst.delete();
+        }
+    }
+
+    private static void check(RootShell.Result result) throws IOException {
+        if (result.exitCode != 0) {
+            throw new IOException("Shell command exited with " + result.exitCode);
+        }
+    }
+}
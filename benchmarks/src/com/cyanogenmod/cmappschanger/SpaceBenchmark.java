@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * What planning the space of a job of 10 to 500 apps costs, most of it reading the sizes
+ * of both ends of every copy. Half the copies shrink their destination and half grow it,
+ * with free space for the net growth only, so the plan just fits once ordered.
+ */
+public class SpaceBenchmark extends Benchmark {
+    public static final String NAME = "space.plan";
+
+    private static final String[] COUNTS = { "10", "100", "500" };
+
+    private final File dir;
+    private String[] sources = null;
+    private String[] destinations = null;
+    private long available = 0;
+
+    public SpaceBenchmark(File scratch) {
+        super(NAME);
+        dir = new File(scratch, "space");
+    }
+
+    public String[] getParams() {
+        return COUNTS;
+    }
+
+    @Override
+    public void setUp(String param) throws IOException {
+        int count = Integer.parseInt(param);
+        dir.mkdirs();
+        sources = new String[count];
+        destinations = new String[count];
+        available = 0;
+        for (int i = 0; i < count; i++) {
+            // odd entries grow from one block to two, even ones shrink from two to one
+            boolean grows = (i % 2 == 1);
+            sources[i] = write("src" + i, grows ? 8192 : 4096);
+            destinations[i] = write("dst" + i, grows ? 4096 : 8192);
+            available += grows ? 4096 : -4096;
+        }
+        available = Math.max(0, available);
+    }
+
+    private String write(String name, int size) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    public void run() throws Exception {
+        SpacePlanner planner = new SpacePlanner(4, new SpacePlanner.SpaceProbe() {
+            public long getAvailable(String path) {
+                return available;
+            }
+
+            public long getBlockSize(String path) {
+                return 4096;
+            }
+        });
+        SpacePlanner.Plan plan = planner.plan(sources, destinations);
+        List<Integer> order = plan.getOrder();
+        if (!plan.isPassed() || (order.get(0) % 2 != 0)) {
+            throw new IllegalStateException("expected shrinking copies first, got " + order);
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+    }
+}
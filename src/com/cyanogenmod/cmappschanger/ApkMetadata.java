@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Package name and version of an APK, read straight from its binary
+ * <code>AndroidManifest.xml</code>. Only the zip's end record, its central directory and
+ * the manifest entry are read; the rest of the APK is never touched.
+ */
+public class ApkMetadata {
+    public static final String MANIFEST = "AndroidManifest.xml";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIZE = 30;
+    private static final int MAX_COMMENT = 0xffff;
+    // real manifests are a few KB, anything this big is not one
+    private static final int MAX_MANIFEST = 1024 * 1024;
+
+    // binary XML chunk types
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_XML = 0x0003;
+    private static final int CHUNK_RESOURCE_MAP = 0x0180;
+    private static final int CHUNK_START_ELEMENT = 0x0102;
+    private static final int STRING_POOL_UTF8 = 1 << 8;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+    // attribute resource ids, for APKs whose attribute names were stripped
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+
+    public final String packageName;
+    public final int versionCode;
+    public final String versionName;
+
+    /**
+     * Class constructor.
+     *
+     * @param packageName Package name.
+     * @param versionCode Version code, <code>0</code> if not set.
+     * @param versionName Version name, may be <code>null</code>.
+     */
+    public ApkMetadata(String packageName, int versionCode, String versionName) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.versionName = versionName;
+    }
+
+    /**
+     * Reads the metadata of an APK.
+     *
+     * @param apk The APK.
+     * @throws IOException If it is not a zip file or has no readable manifest.
+     * @return The metadata.
+     */
+    public static ApkMetadata read(File apk) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(apk, "r");
+        try {
+            byte[] manifest = readEntry(file, MANIFEST);
+            if (manifest == null) {
+                throw new IOException("No " + MANIFEST + " in " + apk);
+            }
+            return parseManifest(manifest);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads one entry of a zip file through its central directory.
+     *
+     * @param file Open zip file.
+     * @param name Entry name.
+     * @throws IOException If the zip is malformed.
+     * @return The uncompressed entry, or <code>null</code> if there is no such entry.
+     */
+    static byte[] readEntry(RandomAccessFile file, String name) throws IOException {
+        // the end record sits before a comment of up to 64K, look for it backwards
+        long length = file.length();
+        int tail = (int)Math.min(length, EOCD_SIZE + MAX_COMMENT);
+        byte[] buffer = new byte[tail];
+        file.seek(length - tail);
+        file.readFully(buffer);
+        int eocd = -1;
+        for (int i = tail - EOCD_SIZE; i >= 0; i--) {
+            if (le32(buffer, i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file");
+        }
+
+        int entries = le16(buffer, eocd + 10);
+        long directorySize = le32(buffer, eocd + 12) & 0xffffffffL;
+        long directoryOffset = le32(buffer, eocd + 16) & 0xffffffffL;
+        if (directoryOffset + directorySize > length) {
+            throw new IOException("Central directory out of range");
+        }
+        byte[] directory = new byte[(int)directorySize];
+        file.seek(directoryOffset);
+        file.readFully(directory);
+
+        byte[] wanted = name.getBytes("UTF-8");
+        int position = 0;
+        for (int n = 0; (n < entries) && (position + CENTRAL_SIZE <= directory.length); n++) {
+            if (le32(directory, position) != CENTRAL_SIGNATURE) {
+                throw new IOException("Bad central directory entry");
+            }
+            int nameLength = le16(directory, position + 28);
+            int next = position + CENTRAL_SIZE + nameLength + le16(directory, position + 30)
+                    + le16(directory, position + 32);
+            if (next > directory.length) {
+                throw new IOException("Bad central directory entry");
+            }
+            if ((nameLength == wanted.length)
+                    && matches(directory, position + CENTRAL_SIZE, wanted)) {
+                return readLocal(file, le32(directory, position + 42) & 0xffffffffL,
+                        le16(directory, position + 10),
+                        le32(directory, position + 20) & 0xffffffffL,
+                        le32(directory, position + 24) & 0xffffffffL);
+            }
+            position = next;
+        }
+        return null;
+    }
+
+    private static byte[] readLocal(RandomAccessFile file, long offset, int method,
+            long compressedSize, long size) throws IOException {
+        if ((compressedSize > MAX_MANIFEST) || (size > MAX_MANIFEST)) {
+            throw new IOException("Entry too large");
+        }
+        byte[] header = new byte[LOCAL_SIZE];
+        file.seek(offset);
+        file.readFully(header);
+        if (le32(header, 0) != LOCAL_SIGNATURE) {
+            throw new IOException("Bad local header");
+        }
+        file.seek(offset + LOCAL_SIZE + le16(header, 26) + le16(header, 28));
+        byte[] data = new byte[(int)compressedSize];
+        file.readFully(data);
+
+        if (method == 0) {
+            return data;
+        } else if (method != 8) {
+            throw new IOException("Unsupported compression method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw deflate wants one byte past the end
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy(data, 0, input, 0, data.length);
+            inflater.setInput(input);
+            byte[] output = new byte[(int)size];
+            int count = 0;
+            while ((count < output.length) && !inflater.finished()) {
+                int inflated = inflater.inflate(output, count, output.length - count);
+                if ((inflated == 0) && inflater.needsInput()) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != output.length) {
+                throw new IOException("Truncated entry");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the <code>manifest</code> element of a binary XML document and reads its
+     * attributes.
+     *
+     * @param xml Binary XML.
+     * @throws IOException If it is malformed or has no manifest element.
+     * @return The metadata.
+     */
+    static ApkMetadata parseManifest(byte[] xml) throws IOException {
+        try {
+            if (le16(xml, 0) != CHUNK_XML) {
+                throw new IOException("Not a binary XML file");
+            }
+            String[] strings = new String[0];
+            int[] resourceIds = new int[0];
+            int position = le16(xml, 2);
+            while (position + 8 <= xml.length) {
+                int type = le16(xml, position);
+                int headerSize = le16(xml, position + 2);
+                int size = le32(xml, position + 4);
+                if ((size < 8) || (size > xml.length - position)) {
+                    break;
+                }
+                int end = position + size;
+                if ((headerSize < 8) || (headerSize > size)) {
+                    throw new IOException("Malformed manifest");
+                }
+
+                if (type == CHUNK_STRING_POOL) {
+                    strings = readStringPool(xml, position, end);
+                } else if (type == CHUNK_RESOURCE_MAP) {
+                    resourceIds = new int[(size - headerSize) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = le32(xml, position + headerSize + i * 4);
+                    }
+                } else if (type == CHUNK_START_ELEMENT) {
+                    int element = position + headerSize;
+                    if (element + 20 > end) {
+                        throw new IOException("Malformed manifest");
+                    }
+                    int name = le32(xml, element + 4);
+                    if ((name >= 0) && (name < strings.length)
+                            && strings[name].equals("manifest")) {
+                        return readManifestElement(xml, element, end, strings, resourceIds);
+                    }
+                }
+                position += size;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // whatever the checks above let through
+            throw new IOException("Malformed manifest");
+        }
+        throw new IOException("No manifest element");
+    }
+
+    private static ApkMetadata readManifestElement(byte[] xml, int element, int end,
+            String[] strings, int[] resourceIds) throws IOException {
+        int attributeStart = le16(xml, element + 8);
+        int attributeSize = le16(xml, element + 10);
+        int attributeCount = le16(xml, element + 12);
+        if ((attributeSize < 20)
+                || (element + attributeStart + (long)attributeCount * attributeSize > end)) {
+            throw new IOException("Malformed manifest");
+        }
+
+        String packageName = null;
+        int versionCode = 0;
+        String versionName = null;
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = element + attributeStart + i * attributeSize;
+            int name = le32(xml, attribute + 4);
+            int raw = le32(xml, attribute + 8);
+            int dataType = xml[attribute + 15] & 0xff;
+            int data = le32(xml, attribute + 16);
+            String attributeName = ((name >= 0) && (name < strings.length)) ? strings[name] : "";
+            int resourceId = ((name >= 0) && (name < resourceIds.length)) ? resourceIds[name] : 0;
+
+            String value = null;
+            if ((raw >= 0) && (raw < strings.length)) {
+                value = strings[raw];
+            } else if ((dataType == TYPE_STRING) && (data >= 0) && (data < strings.length)) {
+                value = strings[data];
+            }
+
+            if (attributeName.equals("package")) {
+                packageName = value;
+            } else if ((resourceId == ATTR_VERSION_CODE) || attributeName.equals("versionCode")) {
+                if ((dataType == TYPE_INT_DEC) || (dataType == TYPE_INT_HEX)) {
+                    versionCode = data;
+                } else if (value != null) {
+                    try {
+                        versionCode = Integer.parseInt(value.trim());
+                    } catch (NumberFormatException e) {
+                        // leave it unknown
+                    }
+                }
+            } else if ((resourceId == ATTR_VERSION_NAME) || attributeName.equals("versionName")) {
+                // a reference into resources.arsc stays unresolved
+                versionName = value;
+            }
+        }
+
+        if ((packageName == null) || (packageName.length() == 0)) {
+            throw new IOException("Manifest has no package");
+        }
+        return new ApkMetadata(packageName, versionCode, versionName);
+    }
+
+    private static String[] readStringPool(byte[] xml, int pool, int end) throws IOException {
+        int headerSize = le16(xml, pool + 2);
+        int count = le32(xml, pool + 8);
+        boolean utf8 = (le32(xml, pool + 16) & STRING_POOL_UTF8) != 0;
+        int stringsOffset = le32(xml, pool + 20);
+        // the offsets table and the strings both have to lie inside the chunk
+        if ((headerSize < 28) || (count < 0) || (count > (end - pool - headerSize) / 4)
+                || (stringsOffset < 0) || (stringsOffset > end - pool)) {
+            throw new IOException("Bad string pool");
+        }
+        int stringsStart = pool + stringsOffset;
+
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = le32(xml, pool + headerSize + i * 4);
+            if ((offset < 0) || (offset >= end - stringsStart)) {
+                throw new IOException("Bad string pool");
+            }
+            int position = stringsStart + offset;
+            if (utf8) {
+                // character count, then byte count, each one or two bytes long
+                position += ((xml[position] & 0x80) != 0) ? 2 : 1;
+                int length = xml[position] & 0xff;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7f) << 8) | (xml[position + 1] & 0xff);
+                    position += 2;
+                } else {
+                    position += 1;
+                }
+                if (length > end - position) {
+                    throw new IOException("Bad string pool");
+                }
+                strings[i] = new String(xml, position, length, "UTF-8");
+            } else {
+                int length = le16(xml, position);
+                position += 2;
+                if ((length & 0x8000) != 0) {
+                    length = ((length & 0x7fff) << 16) | le16(xml, position);
+                    position += 2;
+                }
+                if (length > (end - position) / 2) {
+                    throw new IOException("Bad string pool");
+                }
+                char[] chars = new char[length];
+                for (int j = 0; j < length; j++) {
+                    chars[j] = (char)le16(xml, position + j * 2);
+                }
+                strings[i] = new String(chars);
+            }
+        }
+        return strings;
+    }
+
+    private static boolean matches(byte[] buffer, int offset, byte[] wanted) {
+        for (int i = 0; i < wanted.length; i++) {
+            if (buffer[offset + i] != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int le16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8);
+    }
+
+    private static int le32(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8)
+                | ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+    }
+}
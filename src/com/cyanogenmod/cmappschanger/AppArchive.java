@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A single-file container for a whole backup. Entries are streamed in one after another,
+ * either stored as-is (APKs are already zipped) or deflated, and an index is appended at
+ * the end:
+ *
+ * <pre>
+ * header:  int MAGIC, short VERSION
+ * data:    entry bytes, back to back
+ * index:   int count, then per entry UTF name, long offset, long stored length,
+ *          long size, long mtime, boolean deflated, int crc32, UTF md5
+ * trailer: long index offset, int MAGIC
+ * </pre>
+ *
+ * A reader seeks to the trailer, loads the index and can then extract any single entry
+ * without touching the rest of the file.
+ */
+public class AppArchive {
+    public static final String FILE_NAME = "SystemApps.cmac";
+    // compression levels for the writer
+    public static final int STORE = 0;
+    public static final int DEFAULT_COMPRESSION = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int MAGIC = 0x434d4143; // "CMAC"
+    private static final short VERSION = 1;
+    private static final int TRAILER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AppArchive() {
+    }
+
+    /**
+     * Index information about one archived file.
+     */
+    public static class Entry {
+        public final String name;
+        public final long offset;
+        public final long storedLength;
+        public final long size;
+        public final long mtime;
+        public final boolean deflated;
+        public final int crc;
+        public final String digest;
+
+        Entry(String name, long offset, long storedLength, long size, long mtime,
+                boolean deflated, int crc, String digest) {
+            this.name = name;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.size = size;
+            this.mtime = mtime;
+            this.deflated = deflated;
+            this.crc = crc;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Streams files into a new archive. Memory use doesn't depend on file sizes; only
+     * the small index entries are kept until {@link #close()}. The archive is built in a
+     * temporary file and renamed into place when closed.
+     */
+    public static class Writer {
+        private final File file;
+        private final File tmp;
+        private final int level;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * Class constructor.
+         *
+         * @param file  Archive to create.
+         * @param level <code>STORE</code>, or a <code>Deflater</code> compression level.
+         * @throws IOException If the archive could not be created.
+         */
+        public Writer(File file, int level) throws IOException {
+            this.file = file;
+            this.level = level;
+            tmp = new File(file.getPath() + ".tmp");
+            counter = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+            out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+
+        /**
+         * Appends a file to the archive.
+         *
+         * @param name Entry name.
+         * @param src  File to read.
+         * @throws IOException If reading or writing failed.
+         * @return The new entry.
+         */
+        public Entry add(String name, File src) throws IOException {
+            long offset = counter.getCount();
+            CRC32 crc = new CRC32();
+            MessageDigest digest = FileDigests.newDigest();
+            long size = 0;
+
+            Deflater deflater = null;
+            OutputStream data = new FilterOutputStream(counter) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    counter.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // the archive stays open
+                }
+            };
+            if (level != STORE) {
+                deflater = new Deflater(level, true);
+                data = new DeflaterOutputStream(data, deflater, BUFFER_SIZE);
+            }
+
+            InputStream in = new FileInputStream(src);
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, count);
+                    digest.update(buffer, 0, count);
+                    data.write(buffer, 0, count);
+                    size += count;
+                }
+                if (deflater != null) {
+                    ((DeflaterOutputStream) data).finish();
+                }
+            } finally {
+                in.close();
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+
+            Entry entry = new Entry(name, offset, counter.getCount() - offset, size,
+                    src.lastModified(), deflater != null, (int) crc.getValue(),
+                    FileDigests.toHex(digest.digest()));
+            entries.add(entry);
+            return entry;
+        }
+
+        /**
+         * Writes the index and trailer and moves the archive into place.
+         *
+         * @throws IOException If the archive could not be finished.
+         */
+        public void close() throws IOException {
+            try {
+                long indexOffset = counter.getCount();
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.offset);
+                    out.writeLong(entry.storedLength);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeBoolean(entry.deflated);
+                    out.writeInt(entry.crc);
+                    out.writeUTF(entry.digest);
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not rename " + tmp + " to " + file);
+                }
+            }
+        }
+
+        /**
+         * Throws away a half-written archive.
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads single entries out of an archive using its trailing index.
+     */
+    public static class Reader {
+        private final RandomAccessFile file;
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+        /**
+         * Opens an archive and loads its index.
+         *
+         * @param archive Archive file.
+         * @throws IOException If it is not a complete archive.
+         */
+        public Reader(File archive) throws IOException {
+            file = new RandomAccessFile(archive, "r");
+            try {
+                if ((file.length() < TRAILER_SIZE) || (file.readInt() != MAGIC)) {
+                    throw new IOException(archive + " is not an app archive");
+                }
+                file.seek(file.length() - TRAILER_SIZE);
+                long indexOffset = file.readLong();
+                if (file.readInt() != MAGIC) {
+                    throw new IOException(archive + " is truncated");
+                }
+
+                file.seek(indexOffset);
+                int count = file.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry entry = new Entry(file.readUTF(), file.readLong(), file.readLong(),
+                            file.readLong(), file.readLong(), file.readBoolean(),
+                            file.readInt(), file.readUTF());
+                    entries.put(entry.name, entry);
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        public Entry get(String name) {
+            return entries.get(name);
+        }
+
+        public Collection<Entry> getEntries() {
+            return entries.values();
+        }
+
+        /**
+         * Extracts one entry, checking its CRC.
+         *
+         * @param name Entry name.
+         * @param dst  File to write.
+         * @throws IOException If the entry is missing, unreadable or corrupt.
+         */
+        public void extract(String name, File dst) throws IOException {
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                throw new IOException(name + " is not in the archive");
+            }
+
+            Inflater inflater = null;
+            InputStream in = new RangeInputStream(file, entry.offset, entry.storedLength);
+            if (entry.deflated) {
+                inflater = new Inflater(true);
+                in = new InflaterInputStream(in, inflater, BUFFER_SIZE);
+            }
+
+            CRC32 crc = new CRC32();
+            OutputStream out = new FileOutputStream(dst);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+
+            if ((int) crc.getValue() != entry.crc) {
+                dst.delete();
+                throw new IOException("CRC mismatch extracting " + name);
+            }
+            dst.setLastModified(entry.mtime);
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a slice of a <code>RandomAccessFile</code>.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private long position;
+        private long remaining;
+
+        RangeInputStream(RandomAccessFile file, long offset, long length) {
+            this.file = file;
+            position = offset;
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            file.seek(position);
+            int count = file.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                position += count;
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Keeps track of the archive offset while writing.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
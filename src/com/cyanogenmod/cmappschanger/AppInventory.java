@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * A sorted listing of the system app directory. The last listing is kept for the life of
+ * the process, so a recreated activity gets it without touching the disk, and it is only
+ * listed again when the directory's modification time changes. The metadata of the
+ * listed APKs is kept with the listing once it has been loaded.
+ */
+public class AppInventory {
+    public static final String SYSTEM_APP_DIR = "/system/app";
+
+    private static AppInventory cached = null;
+
+    private final String dir;
+    private final long mtime;
+    private final String[] apps;
+    private final String[] systemPaths;
+    private ApkMetadata[] metadata = null;
+
+    private AppInventory(String dir, long mtime, String[] apps) {
+        this.dir = dir;
+        this.mtime = mtime;
+        this.apps = apps;
+        systemPaths = new String[apps.length];
+        for (int i = 0; i < apps.length; i++) {
+            systemPaths[i] = dir + "/" + apps[i];
+        }
+    }
+
+    /**
+     * Returns the cached listing without checking whether it is still current. Does no
+     * I/O, so it is safe to call from the UI thread.
+     *
+     * @return The last listing, or <code>null</code> if there is none yet.
+     */
+    public static synchronized AppInventory peek() {
+        return cached;
+    }
+
+    /**
+     * Returns the listing of <code>dir</code>, listing it again only if its modification
+     * time differs from the cached one. Call this off the UI thread.
+     *
+     * @param dir Directory to list.
+     * @return The current listing; empty if the directory can't be read.
+     */
+    public static AppInventory get(File dir) {
+        long mtime = dir.lastModified();
+        synchronized (AppInventory.class) {
+            if ((cached != null) && cached.matches(dir, mtime)) {
+                return cached;
+            }
+        }
+
+        // the time is taken before listing, so a change during the listing shows up next time
+        String[] apps = dir.list();
+        if (apps == null) {
+            apps = new String[0];
+        }
+        Arrays.sort(apps);
+        AppInventory inventory = new AppInventory(dir.getPath(), mtime, apps);
+        synchronized (AppInventory.class) {
+            cached = inventory;
+        }
+        return inventory;
+    }
+
+    /**
+     * Checks whether this is still the listing of <code>dir</code>. Only looks at the
+     * directory's modification time, which is cheap enough for the UI thread.
+     *
+     * @param dir Directory the listing should be of.
+     * @return <code>true</code> if it hasn't changed since it was listed.
+     */
+    public boolean isCurrent(File dir) {
+        return matches(dir, dir.lastModified());
+    }
+
+    private boolean matches(File dir, long modified) {
+        return this.dir.equals(dir.getPath()) && (mtime == modified) && (modified != 0);
+    }
+
+    /**
+     * Returns the app file names.
+     *
+     * @return Sorted <code>String[]</code>, not a copy.
+     */
+    public String[] getApps() {
+        return apps;
+    }
+
+    /**
+     * Returns the full path of every app, in the same order as {@link #getApps()}.
+     *
+     * @return <code>String[]</code> of paths, not a copy.
+     */
+    public String[] getSystemPaths() {
+        return systemPaths;
+    }
+
+    public long getModified() {
+        return mtime;
+    }
+
+    /**
+     * Returns the metadata of every app, if it has been loaded.
+     *
+     * @return <code>ApkMetadata[]</code> in the order of {@link #getApps()}, with
+     *          <code>null</code> for unreadable APKs; or <code>null</code> if not loaded.
+     */
+    public synchronized ApkMetadata[] getMetadata() {
+        return metadata;
+    }
+
+    public synchronized void setMetadata(ApkMetadata[] metadata) {
+        this.metadata = metadata;
+    }
+}
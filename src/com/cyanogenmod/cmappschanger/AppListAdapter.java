@@ -45,7 +45,16 @@ public class AppListAdapter extends ArrayAdapter<Object> {
     private static final String TAG = "CM Apps Adapter";
     LayoutInflater inflater;
     String[] appNames = null;
-    String[] appPaths = null;
+    // which path each row is set to, and which rows that changes
+    private AppSelection selection = null;
+    private ApkMetadata[] metadata = null;
+    // package line of every app, formatted once when the metadata arrives
+    private String[] packageLabels = null;
+    // built on first use, dropped when the package names change
+    private AppSearchIndex searchIndex = null;
+    private String filter = "";
+    // app index of every visible row, or null when nothing is filtered out
+    private int[] visible = null;
 
     /**
      * Class constructor.
@@ -58,12 +67,49 @@ public class AppListAdapter extends ArrayAdapter<Object> {
 
         inflater = context.getLayoutInflater();
         appNames = new String[apps.length];
-        appPaths = new String[apps.length];
         System.arraycopy(apps, 0, this.appNames, 0, apps.length);
+        selection = new AppSelection(apps);
+    }
 
-        for (int i = 0; i < apps.length; i++) {
-            appPaths[i] = "/system/app/" + apps[i];
+    /**
+     * Shows only the apps whose file or package name contains <code>text</code>. All
+     * other methods of this adapter take and return app indices, which stay the same
+     * whatever is filtered; use {@link #getAppIndex(int)} to convert a row position.
+     * 
+     * @param text Filter text, empty to show every app
+     */
+    public void setFilter(String text) {
+        filter = text;
+        if (searchIndex == null) {
+            String[] packages = new String[appNames.length];
+            for (int i = 0; i < packages.length; i++) {
+                ApkMetadata apk = getMetadataAt(i);
+                packages[i] = (apk != null) ? apk.packageName : null;
+            }
+            searchIndex = new AppSearchIndex(appNames, packages);
         }
+        visible = searchIndex.search(text);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the app index shown at a row of the <code>ListView</code>.
+     * 
+     * @param position Row position, as passed to click and context menu handlers
+     * @return index into {@link #getApps()} and {@link #getPaths()}
+     */
+    public int getAppIndex(int position) {
+        return (visible != null) ? visible[position] : position;
+    }
+
+    @Override
+    public int getCount() {
+        return (visible != null) ? visible.length : appNames.length;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return appNames[getAppIndex(position)];
     }
 
     /**
@@ -72,7 +118,7 @@ public class AppListAdapter extends ArrayAdapter<Object> {
      * @return <code>String[]</code> of paths in same order as in the <code>ListView</code>
      */
     public String[] getPaths() {
-        return appPaths;
+        return selection.getPaths();
     }
     
     /**
@@ -82,7 +128,7 @@ public class AppListAdapter extends ArrayAdapter<Object> {
      * @return app path
      */
     public String getPathAt(int index) {
-        return appPaths[index];
+        return selection.getPath(index);
     }
     
     /**
@@ -102,7 +148,7 @@ public class AppListAdapter extends ArrayAdapter<Object> {
      * @param path     Full path of desired app.
      */
     public void setPathAt(int position, String path) {
-        appPaths[position] = path;
+        selection.setPath(position, path);
         notifyDataSetChanged();
     }
 
@@ -113,19 +159,122 @@ public class AppListAdapter extends ArrayAdapter<Object> {
      *               <code>ListView</code>
      */
     public void setPaths(String[] paths) {
-        if (paths.length != appPaths.length) {
+        if (paths.length != selection.size()) {
             // TODO: throw exception?
             Log.i(TAG, "Not resetting paths");
         } else {
-            System.arraycopy(paths, 0, appPaths, 0, paths.length);
+            for (int i = 0; i < paths.length; i++) {
+                selection.setPath(i, paths[i]);
+            }
             notifyDataSetChanged();
         }
         
     }
+
+    /**
+     * Sets every changed app back to its system path.
+     */
+    public void reset() {
+        selection.reset();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns whether any app has been set to something other than its system path.
+     * 
+     * @return <code>true</code> if there is anything to apply
+     */
+    public boolean hasChanges() {
+        return selection.hasChanges();
+    }
+
+    /**
+     * Returns whether the app at <code>position</code> has been changed.
+     * 
+     * @param position Position in the <code>ListView</code>
+     * @return <code>true</code> if its path differs from the system path
+     */
+    public boolean isChanged(int position) {
+        return selection.isChanged(position);
+    }
+
+    /**
+     * Returns the positions of all changed apps.
+     * 
+     * @return <code>int[]</code> of positions, in ascending order
+     */
+    public int[] getChangedPositions() {
+        return selection.getChangedPositions();
+    }
+
+    /**
+     * Returns the unmodified system path of the app at <code>position</code>.
+     * 
+     * @param position Position in the <code>ListView</code>
+     * @return path under /system/app
+     */
+    public String getSystemPathAt(int position) {
+        return selection.getSystemPath(position);
+    }
     
+    /**
+     * Sets the package metadata to show under each app.
+     * 
+     * @param metadata <code>ApkMetadata[]</code> in the same order as in the
+     *                  <code>ListView</code>, <code>null</code> for unreadable APKs
+     */
+    public void setMetadata(ApkMetadata[] metadata) {
+        this.metadata = metadata;
+        packageLabels = new String[metadata.length];
+        for (int i = 0; i < metadata.length; i++) {
+            ApkMetadata apk = metadata[i];
+            if (apk != null) {
+                packageLabels[i] = getContext().getString(R.string.app_package,
+                        apk.packageName, (apk.versionName != null) ? apk.versionName : "",
+                        apk.versionCode);
+            }
+        }
+        if (searchIndex != null) {
+            // package names are searchable now, start over with them
+            searchIndex = null;
+            setFilter(filter);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Returns the package metadata of the system app at <code>position</code>.
+     * 
+     * @param position Position in the <code>ListView</code>
+     * @return metadata, or <code>null</code> if it isn't known
+     */
+    public ApkMetadata getMetadataAt(int position) {
+        return (metadata != null) ? metadata[position] : null;
+    }
+
+    /**
+     * Finds the system app with a given package name.
+     * 
+     * @param packageName Package to look for.
+     * @return position in the <code>ListView</code>, or <code>-1</code>
+     */
+    public int findPackage(String packageName) {
+        if (metadata == null) {
+            return -1;
+        }
+        for (int i = 0; i < metadata.length; i++) {
+            if ((metadata[i] != null) && metadata[i].packageName.equals(packageName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    public View getView(int row, View convertView, ViewGroup parent) {
         ViewHolder holder = null;
+        int position = getAppIndex(row);
 
         if (convertView == null) {    
             convertView = inflater.inflate(R.layout.app_select, null);
@@ -133,17 +282,25 @@ public class AppListAdapter extends ArrayAdapter<Object> {
             holder = new ViewHolder();
             holder.app_name = (TextView) convertView.findViewById(R.id.app_name);
             holder.app_location = (TextView) convertView.findViewById(R.id.app_location);
+            holder.app_package = (TextView) convertView.findViewById(R.id.app_package);
             convertView.setTag(holder);
         } else {
             holder = (ViewHolder) convertView.getTag();
         }
         
         holder.app_name.setText(appNames[position]);
+        String label = (packageLabels != null) ? packageLabels[position] : null;
+        if (label == null) {
+            holder.app_package.setVisibility(View.GONE);
+        } else {
+            holder.app_package.setText(label);
+            holder.app_package.setVisibility(View.VISIBLE);
+        }
         // don't display app path if it's the system app
-        if (appPaths[position].equals("/system/app/" + appNames[position])) {
+        if (!selection.isChanged(position)) {
             holder.app_location.setVisibility(View.GONE);
         } else {
-            holder.app_location.setText(appPaths[position]);
+            holder.app_location.setText(selection.getPath(position));
             holder.app_location.setVisibility(View.VISIBLE);
         }
         return convertView;
@@ -158,5 +315,6 @@ public class AppListAdapter extends ArrayAdapter<Object> {
     public static class ViewHolder {
         TextView app_name;
         TextView app_location;
+        TextView app_package;
     }
 }
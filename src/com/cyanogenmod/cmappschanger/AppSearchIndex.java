@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * Finds apps whose file name or package name contains a query. Every suffix of every
+ * lower-cased name is sorted once up front, so a fresh query is a binary search for the
+ * range of suffixes starting with it, which covers prefix and substring matches alike.
+ * While the user keeps typing, each new query only narrows the previous result.
+ */
+public class AppSearchIndex {
+    // lower-cased file and package names, two per app
+    private final String[] keys;
+    // every suffix as key * MAX_KEY + start, sorted by the suffix text
+    private final int[] suffixes;
+    private final int count;
+    private String lastQuery = null;
+    private int[] lastResult = null;
+
+    // keys are file and package names, far below this
+    private static final int MAX_KEY = 1 << 12;
+
+    /**
+     * Class constructor.
+     *
+     * @param names    App file names.
+     * @param packages Package names in the same order, may be <code>null</code> or hold
+     *                  <code>null</code>s.
+     */
+    public AppSearchIndex(String[] names, String[] packages) {
+        count = names.length;
+        keys = new String[count * 2];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            keys[i * 2] = clip(names[i].toLowerCase());
+            keys[i * 2 + 1] = ((packages != null) && (packages[i] != null))
+                    ? clip(packages[i].toLowerCase()) : "";
+            total += keys[i * 2].length() + keys[i * 2 + 1].length();
+        }
+
+        Integer[] order = new Integer[total];
+        int n = 0;
+        for (int key = 0; key < keys.length; key++) {
+            for (int start = 0; start < keys[key].length(); start++) {
+                order[n++] = key * MAX_KEY + start;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareFrom(keys[a / MAX_KEY], a % MAX_KEY,
+                        keys[b / MAX_KEY], b % MAX_KEY);
+            }
+        });
+        suffixes = new int[total];
+        for (int i = 0; i < total; i++) {
+            suffixes[i] = order[i];
+        }
+    }
+
+    /**
+     * Returns the apps matching a query.
+     *
+     * @param query Text to look for, case is ignored.
+     * @return Positions of the matching apps in ascending order, or <code>null</code> if
+     *          the query is empty and everything matches.
+     */
+    public synchronized int[] search(String query) {
+        String q = query.trim().toLowerCase();
+        if (q.length() == 0) {
+            lastQuery = null;
+            lastResult = null;
+            return null;
+        }
+
+        int[] result;
+        if ((lastQuery != null) && q.startsWith(lastQuery)) {
+            // typing on: whatever matches now matched the shorter query too
+            int[] narrowed = new int[lastResult.length];
+            int n = 0;
+            for (int app : lastResult) {
+                if ((keys[app * 2].indexOf(q) >= 0) || (keys[app * 2 + 1].indexOf(q) >= 0)) {
+                    narrowed[n++] = app;
+                }
+            }
+            result = new int[n];
+            System.arraycopy(narrowed, 0, result, 0, n);
+        } else {
+            BitSet matches = new BitSet(count);
+            for (int i = lowerBound(q); i < suffixes.length; i++) {
+                int entry = suffixes[i];
+                if (!keys[entry / MAX_KEY].regionMatches(entry % MAX_KEY, q, 0, q.length())) {
+                    break;
+                }
+                matches.set(suffixes[i] / MAX_KEY / 2);
+            }
+            result = new int[matches.cardinality()];
+            int n = 0;
+            for (int app = matches.nextSetBit(0); app >= 0; app = matches.nextSetBit(app + 1)) {
+                result[n++] = app;
+            }
+        }
+
+        lastQuery = q;
+        lastResult = result;
+        return result;
+    }
+
+    // first suffix that sorts at or after the query
+    private int lowerBound(String q) {
+        int low = 0;
+        int high = suffixes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int entry = suffixes[middle];
+            if (compareFrom(keys[entry / MAX_KEY], entry % MAX_KEY, q, 0) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // compares the suffixes of two strings from the given offsets, as compareTo would
+    // compare them, without copying either
+    private static int compareFrom(String a, int i, String b, int j) {
+        while ((i < a.length()) && (j < b.length())) {
+            char x = a.charAt(i++);
+            char y = b.charAt(j++);
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    private static String clip(String key) {
+        return (key.length() < MAX_KEY) ? key : key.substring(0, MAX_KEY - 1);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.BitSet;
+
+/**
+ * The path the user picked for every system app, and which of them differ from the
+ * app's own /system/app path. Changed rows are tracked in a bit set as they are set, so
+ * asking whether there is anything to apply, or for the list of changes, never compares
+ * every path.
+ */
+public class AppSelection {
+    private final String[] paths;
+    // the unmodified /system/app path of every row
+    private final String[] systemPaths;
+    // rows whose path differs from the system path
+    private final BitSet overridden;
+    private int changedCount = 0;
+
+    /**
+     * Class constructor. Every app starts out at its system path.
+     *
+     * @param apps System app filenames.
+     */
+    public AppSelection(String[] apps) {
+        paths = new String[apps.length];
+        systemPaths = new String[apps.length];
+        overridden = new BitSet(apps.length);
+        for (int i = 0; i < apps.length; i++) {
+            systemPaths[i] = "/system/app/" + apps[i];
+            paths[i] = systemPaths[i];
+        }
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * Returns the selected paths.
+     *
+     * @return <code>String[]</code> of paths in row order, not a copy.
+     */
+    public String[] getPaths() {
+        return paths;
+    }
+
+    public String getPath(int position) {
+        return paths[position];
+    }
+
+    public String getSystemPath(int position) {
+        return systemPaths[position];
+    }
+
+    /**
+     * Selects a path for one app.
+     *
+     * @param position Row of the app.
+     * @param path     Full path of desired app.
+     */
+    public void setPath(int position, String path) {
+        paths[position] = path;
+        boolean changed = !path.equals(systemPaths[position]);
+        if (changed != overridden.get(position)) {
+            overridden.set(position, changed);
+            changedCount += changed ? 1 : -1;
+        }
+    }
+
+    /**
+     * Sets every changed app back to its system path.
+     */
+    public void reset() {
+        for (int i = overridden.nextSetBit(0); i >= 0; i = overridden.nextSetBit(i + 1)) {
+            paths[i] = systemPaths[i];
+        }
+        overridden.clear();
+        changedCount = 0;
+    }
+
+    public boolean hasChanges() {
+        return changedCount > 0;
+    }
+
+    public boolean isChanged(int position) {
+        return overridden.get(position);
+    }
+
+    /**
+     * Returns the rows of all changed apps.
+     *
+     * @return <code>int[]</code> of positions, in ascending order
+     */
+    public int[] getChangedPositions() {
+        int[] positions = new int[changedCount];
+        int n = 0;
+        for (int i = overridden.nextSetBit(0); i >= 0; i = overridden.nextSetBit(i + 1)) {
+            positions[n++] = i;
+        }
+        return positions;
+    }
+}
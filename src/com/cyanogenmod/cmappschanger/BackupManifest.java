@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Index of a backup in /sdcard/SystemApps: what it contains, when it was taken and on
+ * which build. It is a small tab-separated text file that is written once, atomically,
+ * after a backup finishes, so nothing has to stat the backed-up files to learn about them.
+ */
+public class BackupManifest {
+    public static final String FILE_NAME = ".manifest";
+    private static final String MAGIC = "cmac-manifest 1";
+
+    private final long created;
+    private final String fingerprint;
+    private final boolean complete;
+    private String archive = null;
+    private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Class constructor.
+     *
+     * @param created     Time the backup was taken, in milliseconds.
+     * @param fingerprint Build fingerprint of the system that was backed up.
+     * @param complete    Whether every app was backed up successfully.
+     */
+    public BackupManifest(long created, String fingerprint, boolean complete) {
+        this.created = created;
+        this.fingerprint = fingerprint;
+        this.complete = complete;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the archive the apps are stored in.
+     *
+     * @return File name of the {@link AppArchive} in the backup directory, or
+     *          <code>null</code> if the apps are stored as loose files.
+     */
+    public String getArchive() {
+        return archive;
+    }
+
+    public void setArchive(String archive) {
+        this.archive = archive;
+    }
+
+    public void add(Entry entry) {
+        entries.put(entry.name, entry);
+    }
+
+    /**
+     * Returns the entry for an app.
+     *
+     * @param name App file name.
+     * @return The entry, or <code>null</code> if the app is not in the backup.
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Checks that every one of <code>apps</code> is in the backup.
+     *
+     * @param apps App file names.
+     * @return <code>true</code> if all of them have an entry.
+     */
+    public boolean covers(String[] apps) {
+        for (int i = 0; i < apps.length; i++) {
+            if (!entries.containsKey(apps[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the backup was taken on a different build.
+     *
+     * @param currentFingerprint Fingerprint of the running build.
+     * @return <code>true</code> if the backup came from another build.
+     */
+    public boolean isStale(String currentFingerprint) {
+        return !fingerprint.equals(currentFingerprint);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param file Manifest file.
+     * @return The manifest, or <code>null</code> if it is missing, truncated or unreadable.
+     */
+    public static BackupManifest read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"), 8192);
+            try {
+                if (!MAGIC.equals(in.readLine())) {
+                    return null;
+                }
+                long created = Long.parseLong(field(in.readLine(), "created"));
+                String fingerprint = field(in.readLine(), "fingerprint");
+                boolean complete = "1".equals(field(in.readLine(), "complete"));
+                BackupManifest manifest = new BackupManifest(created, fingerprint, complete);
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields[0].equals("archive")) {
+                        manifest.setArchive(fields[1]);
+                        continue;
+                    }
+                    if (fields[0].equals("end")) {
+                        // only trust a manifest that was written out to the end
+                        if (Integer.parseInt(fields[1]) != manifest.entries.size()) {
+                            return null;
+                        }
+                        return manifest;
+                    }
+                    manifest.add(new Entry(fields[1], Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), fields[4]));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // fall through, an unreadable manifest is no manifest
+        } catch (RuntimeException e) {
+            // malformed line
+        }
+        return null;
+    }
+
+    /**
+     * Writes the manifest to a temporary file and renames it over <code>file</code>, so
+     * readers only ever see the old or the new manifest.
+     *
+     * @param file Manifest file.
+     * @throws IOException If the manifest could not be written.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            out.write(MAGIC + "\n");
+            out.write("created\t" + created + "\n");
+            out.write("fingerprint\t" + fingerprint + "\n");
+            out.write("complete\t" + (complete ? "1" : "0") + "\n");
+            if (archive != null) {
+                out.write("archive\t" + archive + "\n");
+            }
+            for (Entry entry : entries.values()) {
+                out.write("app\t" + entry.name + "\t" + entry.size + "\t" + entry.mtime + "\t"
+                        + entry.digest + "\n");
+            }
+            out.write("end\t" + entries.size() + "\n");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // some filesystems won't rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static String field(String line, String name) throws IOException {
+        if ((line == null) || !line.startsWith(name + "\t")) {
+            throw new IOException("Expected " + name);
+        }
+        return line.substring(name.length() + 1);
+    }
+
+    /**
+     * One backed-up app.
+     */
+    public static class Entry {
+        public final String name;
+        public final long size;
+        public final long mtime;
+        public final String digest;
+
+        public Entry(String name, long size, long mtime, String digest) {
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A multi-generation backup store. APK contents are stored once under their digest in
+ * <code>blobs/</code>, and every backup is a {@link BackupManifest} in
+ * <code>generations/</code> that refers to those blobs, so an unchanged APK costs nothing
+ * in a new generation. A reference count per blob is kept in <code>refs</code>; blobs
+ * whose count drops to zero are queued in <code>garbage</code>, as are new blobs until a
+ * generation refers to them, and only those are looked at by {@link #collectGarbage()}.
+ * <p>
+ * With deltas enabled, a new version of an app is stored as a {@link BinaryDelta} against
+ * the full blob of its previous version. A delta holds a reference on its base, and is
+ * only ever made against a full blob, so rebuilding one never takes more than one step.
+ */
+public class BackupStore {
+    public static final String DIR_NAME = "store";
+    private static final String GENERATION_SUFFIX = ".gen";
+    private static final String DELTA_SUFFIX = ".delta";
+
+    private final File root;
+    private final File blobs;
+    private final File generations;
+    private final File refsFile;
+    private final File garbageFile;
+    private Map<String, Integer> refs = null;
+    private Set<String> garbage = null;
+    private boolean deltas = false;
+    private Shell shell = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param root Directory of the store, created if needed.
+     */
+    public BackupStore(File root) {
+        this.root = root;
+        blobs = new File(root, "blobs");
+        generations = new File(root, "generations");
+        refsFile = new File(root, "refs");
+        garbageFile = new File(root, "garbage");
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Enables storing new versions of apps as deltas against their previous version.
+     *
+     * @param deltas Whether to write deltas.
+     */
+    public void setDeltas(boolean deltas) {
+        this.deltas = deltas;
+    }
+
+    /**
+     * Sets the shell to copy with when the store can't read a source or write a blob
+     * itself.
+     *
+     * @param shell Root shell, or <code>null</code> to fail such copies.
+     */
+    public void setShell(Shell shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Returns where the blob with a given digest lives, whether or not it exists yet.
+     *
+     * @param digest Content digest.
+     * @return The blob file.
+     */
+    public File getBlob(String digest) {
+        return new File(new File(blobs, digest.substring(0, 2)), digest);
+    }
+
+    public boolean hasBlob(String digest) {
+        return getBlob(digest).exists() || getDelta(digest).exists();
+    }
+
+    /**
+     * Checks whether a blob is stored as a delta.
+     *
+     * @param digest Content digest.
+     * @return <code>true</code> if only a delta of it is stored.
+     */
+    public boolean isDelta(String digest) {
+        return !getBlob(digest).exists() && getDelta(digest).exists();
+    }
+
+    /**
+     * Returns the full contents of a blob, rebuilding it into <code>scratch</code> if it
+     * is stored as a delta. A rebuilt blob is checked against its digest.
+     *
+     * @param digest  Content digest.
+     * @param scratch Where to rebuild a delta.
+     * @throws IOException If the blob is missing or could not be rebuilt intact.
+     * @return The file holding the blob's contents.
+     */
+    public File materialize(String digest, File scratch) throws IOException {
+        File blob = getBlob(digest);
+        if (blob.exists()) {
+            return blob;
+        }
+        File delta = getDelta(digest);
+        if (!delta.exists()) {
+            throw new IOException("No blob " + digest);
+        }
+        BinaryDelta.apply(getBlob(BinaryDelta.readBaseDigest(delta)), delta, scratch, digest);
+        return scratch;
+    }
+
+    /**
+     * Copies a file into the store under its digest, unless that blob is already there.
+     *
+     * @param src    File to store.
+     * @param digest Digest of <code>src</code>.
+     * @throws IOException If the blob could not be written.
+     * @return <code>true</code> if a new blob was written.
+     */
+    public boolean addBlob(File src, String digest) throws IOException {
+        return addBlob(src, digest, null);
+    }
+
+    /**
+     * Copies a file into the store under its digest, unless that blob is already there.
+     * With deltas enabled and a previous version given, the file is stored as a delta if
+     * that comes out at less than half its size.
+     *
+     * @param src      File to store.
+     * @param digest   Digest of <code>src</code>.
+     * @param previous Digest of the previous version of the same app, or <code>null</code>.
+     * @throws IOException If the blob could not be written.
+     * @return <code>true</code> if a new blob was written.
+     */
+    public boolean addBlob(File src, String digest, String previous) throws IOException {
+        if (hasBlob(digest)) {
+            return false;
+        }
+        // a backup that never gets to commit its generation mustn't leave the blob behind
+        queuePending(digest);
+        File blob = getBlob(digest);
+        blob.getParentFile().mkdirs();
+
+        if (deltas && (previous != null) && addDelta(src, digest, previous)) {
+            return true;
+        }
+
+        // copy under a temporary name so a half-written blob is never mistaken for a real one
+        File tmp = new File(blob.getPath() + ".tmp");
+        try {
+            // a blob is named by its digest, so what was copied must match it
+            CopyEngine engine = CopyEngines.select(src, tmp);
+            if (engine == CopyEngines.SHELL) {
+                engine = new ShellCopyEngine(shell);
+            }
+            String copied = engine.copy(src, tmp, null, true);
+            if (!digest.equals(copied)) {
+                throw new IOException(CopyVerifier.FAILURE_PREFIX + ": " + src + " is "
+                        + copied + ", expected " + digest);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(blob)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + blob);
+        }
+        blob.setLastModified(src.lastModified());
+        return true;
+    }
+
+    /**
+     * Lists the stored generations.
+     *
+     * @return Generation ids, oldest first.
+     */
+    public List<Long> listGenerations() {
+        List<Long> ids = new ArrayList<Long>();
+        String[] names = generations.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(GENERATION_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(0,
+                                name.length() - GENERATION_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Reads one generation.
+     *
+     * @param id Generation id.
+     * @return Its manifest, or <code>null</code> if it is missing or unreadable.
+     */
+    public BackupManifest readGeneration(long id) {
+        return BackupManifest.read(generationFile(id));
+    }
+
+    /**
+     * Reads the newest generation.
+     *
+     * @return Its manifest, or <code>null</code> if the store is empty.
+     */
+    public BackupManifest latest() {
+        List<Long> ids = listGenerations();
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            BackupManifest manifest = readGeneration(ids.get(i));
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a generation whose blobs have all been stored. Its id is its creation time.
+     *
+     * @param manifest The new generation.
+     * @throws IOException If it could not be recorded.
+     */
+    public synchronized void commitGeneration(BackupManifest manifest) throws IOException {
+        loadRefs();
+        generations.mkdirs();
+        // count the references before the generation exists, a crash in between only
+        // keeps a blob alive longer than needed
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            Integer count = refs.get(entry.digest);
+            refs.put(entry.digest, (count == null) ? 1 : count + 1);
+            garbage.remove(entry.digest);
+        }
+        saveRefs();
+        manifest.write(generationFile(manifest.getCreated()));
+    }
+
+    /**
+     * Deletes a generation and drops its references. Blobs it was the last user of are
+     * queued for {@link #collectGarbage()}.
+     *
+     * @param id Generation id.
+     * @throws IOException If the reference counts could not be saved.
+     */
+    public synchronized void deleteGeneration(long id) throws IOException {
+        BackupManifest manifest = readGeneration(id);
+        if (!generationFile(id).delete() || (manifest == null)) {
+            return;
+        }
+
+        loadRefs();
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            Integer count = refs.get(entry.digest);
+            if ((count == null) || (count <= 1)) {
+                refs.remove(entry.digest);
+                garbage.add(entry.digest);
+            } else {
+                refs.put(entry.digest, count - 1);
+            }
+        }
+        saveRefs();
+    }
+
+    /**
+     * Deletes all but the newest generations.
+     *
+     * @param keep Number of generations to keep.
+     * @throws IOException If the reference counts could not be saved.
+     */
+    public synchronized void prune(int keep) throws IOException {
+        List<Long> ids = listGenerations();
+        for (int i = 0; i < ids.size() - keep; i++) {
+            deleteGeneration(ids.get(i));
+        }
+    }
+
+    /**
+     * Deletes the queued blobs that are still unreferenced.
+     *
+     * @throws IOException If the queue could not be saved.
+     * @return Number of blobs deleted.
+     */
+    public synchronized int collectGarbage() throws IOException {
+        loadRefs();
+        int deleted = 0;
+        // deleting a delta can free its base, which is then handled in the same pass
+        List<String> queue = new ArrayList<String>(garbage);
+        for (int i = 0; i < queue.size(); i++) {
+            String digest = queue.get(i);
+            if (refs.containsKey(digest)) {
+                continue;
+            }
+            File delta = getDelta(digest);
+            if (delta.exists()) {
+                String base = BinaryDelta.readBaseDigest(delta);
+                if (delta.delete()) {
+                    deleted++;
+                    Integer count = refs.get(base);
+                    if ((count == null) || (count <= 1)) {
+                        refs.remove(base);
+                        queue.add(base);
+                    } else {
+                        refs.put(base, count - 1);
+                    }
+                }
+            }
+            if (getBlob(digest).delete()) {
+                deleted++;
+            }
+        }
+        garbage.clear();
+        saveRefs();
+        return deleted;
+    }
+
+    // writes a delta against the full blob behind previous, if one exists and it pays off
+    private synchronized boolean addDelta(File src, String digest, String previous)
+            throws IOException {
+        String base = previous;
+        if (isDelta(previous)) {
+            base = BinaryDelta.readBaseDigest(getDelta(previous));
+        }
+        if (!getBlob(base).exists()) {
+            return false;
+        }
+
+        File delta = getDelta(digest);
+        File tmp = new File(delta.getPath() + ".tmp");
+        try {
+            BinaryDelta.create(getBlob(base), base, src, tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (tmp.length() >= src.length() / 2) {
+            tmp.delete();
+            return false;
+        }
+
+        if (!tmp.renameTo(delta)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + delta);
+        }
+
+        // the base has to outlive the delta
+        loadRefs();
+        Integer count = refs.get(base);
+        refs.put(base, (count == null) ? 1 : count + 1);
+        garbage.remove(base);
+        saveRefs();
+        return true;
+    }
+
+    // queues a blob about to be written, committing a generation that uses it takes it off
+    private synchronized void queuePending(String digest) throws IOException {
+        loadRefs();
+        if (!refs.containsKey(digest) && garbage.add(digest)) {
+            saveRefs();
+        }
+    }
+
+    private File getDelta(String digest) {
+        return new File(getBlob(digest).getPath() + DELTA_SUFFIX);
+    }
+
+    private File generationFile(long id) {
+        return new File(generations, id + GENERATION_SUFFIX);
+    }
+
+    private void loadRefs() throws IOException {
+        if (refs != null) {
+            return;
+        }
+        Map<String, Integer> loaded = new HashMap<String, Integer>();
+        for (String line : readLines(refsFile)) {
+            // a count can't be guessed, and losing one could collect a blob still in use
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                throw malformedRefs(line);
+            }
+            try {
+                loaded.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1)));
+            } catch (NumberFormatException e) {
+                throw malformedRefs(line);
+            }
+        }
+        garbage = new LinkedHashSet<String>(readLines(garbageFile));
+        refs = loaded;
+    }
+
+    private IOException malformedRefs(String line) {
+        return new IOException("Malformed line in " + refsFile + ": " + line);
+    }
+
+    private void saveRefs() throws IOException {
+        List<String> lines = new ArrayList<String>(refs.size());
+        for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+            lines.add(ref.getKey() + "\t" + ref.getValue());
+        }
+        writeLines(refsFile, lines);
+        writeLines(garbageFile, garbage);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"), 8192);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    // written next to the target and renamed over it
+    private void writeLines(File file, Iterable<String> lines) throws IOException {
+        root.mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            for (String line : lines) {
+                out.write(line + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+}
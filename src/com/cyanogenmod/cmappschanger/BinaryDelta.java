@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary deltas between two versions of a file, in the style of rsync: the old version
+ * is cut into fixed-size blocks indexed by a rolling checksum, and the new version is
+ * scanned for those blocks at any offset. The delta is a list of block copies from the
+ * old version and literal data. Both creating and applying a delta stream the new
+ * version; only the block index of the old version is held in memory.
+ *
+ * <pre>
+ * header: int MAGIC, UTF base digest, long target size, int block size
+ * ops:    byte COPY, long offset, int length
+ *         byte DATA, int length, bytes
+ *         byte END
+ * </pre>
+ */
+public class BinaryDelta {
+    private static final int MAGIC = 0x434d4144; // "CMAD"
+    private static final int BLOCK_SIZE = 2048;
+    // literal data is flushed in chunks of at most this size
+    private static final int MAX_LITERAL = 32 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_DATA = 2;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * Writes the delta that turns <code>base</code> into <code>target</code>.
+     *
+     * @param base       Old version.
+     * @param baseDigest Digest of <code>base</code>, recorded in the delta.
+     * @param target     New version.
+     * @param delta      File to write.
+     * @throws IOException If a file could not be read or written.
+     */
+    public static void create(File base, String baseDigest, File target, File delta)
+            throws IOException {
+        Map<Integer, long[]> index = indexBlocks(base);
+        MessageDigest md5 = FileDigests.newDigest();
+
+        InputStream in = new FileInputStream(target);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(delta), READ_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(baseDigest);
+            out.writeLong(target.length());
+            out.writeInt(BLOCK_SIZE);
+
+            Encoder encoder = new Encoder(out);
+            byte[] buf = new byte[READ_SIZE + BLOCK_SIZE];
+            int pos = 0;
+            int end = 0;
+            boolean eof = false;
+            boolean haveSum = false;
+            int a = 0;
+            int b = 0;
+
+            while (true) {
+                // keep at least a whole window plus the next byte in the buffer
+                if (!eof && (end - pos <= BLOCK_SIZE)) {
+                    System.arraycopy(buf, pos, buf, 0, end - pos);
+                    end -= pos;
+                    pos = 0;
+                    int count;
+                    while ((end < buf.length)
+                            && ((count = in.read(buf, end, buf.length - end)) != -1)) {
+                        end += count;
+                    }
+                    eof = end < buf.length;
+                }
+                if (end - pos < BLOCK_SIZE) {
+                    break;
+                }
+
+                if (!haveSum) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        int x = buf[pos + i] & 0xff;
+                        a += x;
+                        b += (BLOCK_SIZE - i) * x;
+                    }
+                    haveSum = true;
+                }
+
+                long[] blocks = index.get(((b & 0xffff) << 16) | (a & 0xffff));
+                long match = (blocks != null) ? findBlock(blocks, buf, pos, md5) : -1;
+                if (match >= 0) {
+                    encoder.copy(match * BLOCK_SIZE, BLOCK_SIZE);
+                    pos += BLOCK_SIZE;
+                    haveSum = false;
+                } else {
+                    encoder.literal(buf[pos]);
+                    if (pos + BLOCK_SIZE < end) {
+                        // roll the window forward by one byte
+                        int outByte = buf[pos] & 0xff;
+                        int inByte = buf[pos + BLOCK_SIZE] & 0xff;
+                        a += inByte - outByte;
+                        b += a - BLOCK_SIZE * outByte;
+                    } else {
+                        haveSum = false;
+                    }
+                    pos++;
+                }
+            }
+
+            // whatever is shorter than a block goes out as data
+            for (int i = pos; i < end; i++) {
+                encoder.literal(buf[i]);
+            }
+            encoder.finish();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the digest of the file a delta was made against.
+     *
+     * @param delta Delta file.
+     * @throws IOException If it is not a delta.
+     * @return The base digest.
+     */
+    public static String readBaseDigest(File delta) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(delta));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(delta + " is not a delta");
+            }
+            return in.readUTF();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rebuilds the new version from the old one and a delta, and checks the result.
+     *
+     * @param base           Old version.
+     * @param delta          Delta made against <code>base</code>.
+     * @param target         File to write.
+     * @param expectedDigest Digest the result must have.
+     * @throws IOException If something could not be read or written, or the result has the
+     *                      wrong digest. A bad result is deleted.
+     */
+    public static void apply(File base, File delta, File target, String expectedDigest)
+            throws IOException {
+        MessageDigest md5 = FileDigests.newDigest();
+        RandomAccessFile old = new RandomAccessFile(base, "r");
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(delta), READ_SIZE));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target), READ_SIZE);
+        boolean ok = false;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(delta + " is not a delta");
+            }
+            in.readUTF();
+            long size = in.readLong();
+            in.readInt();
+
+            byte[] buffer = new byte[READ_SIZE];
+            long written = 0;
+            byte op;
+            while ((op = in.readByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    old.seek(in.readLong());
+                    int length = in.readInt();
+                    while (length > 0) {
+                        int count = old.read(buffer, 0, Math.min(length, buffer.length));
+                        if (count < 0) {
+                            throw new IOException("Delta reads past the end of " + base);
+                        }
+                        md5.update(buffer, 0, count);
+                        out.write(buffer, 0, count);
+                        length -= count;
+                        written += count;
+                    }
+                } else if (op == OP_DATA) {
+                    int length = in.readInt();
+                    while (length > 0) {
+                        int count = Math.min(length, buffer.length);
+                        in.readFully(buffer, 0, count);
+                        md5.update(buffer, 0, count);
+                        out.write(buffer, 0, count);
+                        length -= count;
+                        written += count;
+                    }
+                } else {
+                    throw new IOException("Corrupt delta " + delta);
+                }
+            }
+
+            if (written != size) {
+                throw new IOException("Delta produced " + written + " bytes, expected " + size);
+            }
+            if (!FileDigests.toHex(md5.digest()).equals(expectedDigest)) {
+                throw new IOException("Digest mismatch rebuilding " + target);
+            }
+            ok = true;
+        } finally {
+            old.close();
+            in.close();
+            out.close();
+            if (!ok) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * Maps the rolling checksum of every whole block of <code>base</code> to the block
+     * numbers and strong digests that have it.
+     */
+    private static Map<Integer, long[]> indexBlocks(File base) throws IOException {
+        Map<Integer, long[]> index = new HashMap<Integer, long[]>();
+        MessageDigest md5 = FileDigests.newDigest();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(base), READ_SIZE));
+        try {
+            byte[] block = new byte[BLOCK_SIZE];
+            long blocks = base.length() / BLOCK_SIZE;
+            for (long n = 0; n < blocks; n++) {
+                in.readFully(block);
+                int a = 0;
+                int b = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    int x = block[i] & 0xff;
+                    a += x;
+                    b += (BLOCK_SIZE - i) * x;
+                }
+                Integer key = ((b & 0xffff) << 16) | (a & 0xffff);
+
+                // each record is the block number followed by the two halves of its MD5
+                byte[] strong = md5.digest(block);
+                long[] record = { n, toLong(strong, 0), toLong(strong, 8) };
+                long[] existing = index.get(key);
+                if (existing == null) {
+                    index.put(key, record);
+                } else {
+                    long[] merged = new long[existing.length + 3];
+                    System.arraycopy(existing, 0, merged, 0, existing.length);
+                    System.arraycopy(record, 0, merged, existing.length, 3);
+                    index.put(key, merged);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    private static long findBlock(long[] records, byte[] buf, int pos, MessageDigest md5) {
+        md5.update(buf, pos, BLOCK_SIZE);
+        byte[] strong = md5.digest();
+        long high = toLong(strong, 0);
+        long low = toLong(strong, 8);
+        for (int i = 0; i < records.length; i += 3) {
+            if ((records[i + 1] == high) && (records[i + 2] == low)) {
+                return records[i];
+            }
+        }
+        return -1;
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Collects literal bytes and merges adjacent block copies before writing ops.
+     */
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final byte[] literal = new byte[MAX_LITERAL];
+        private int literalLength = 0;
+        private long copyOffset = -1;
+        private int copyLength = 0;
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void copy(long offset, int length) throws IOException {
+            flushLiteral();
+            if ((copyOffset >= 0) && (copyOffset + copyLength == offset)
+                    && (copyLength <= Integer.MAX_VALUE - length)) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void literal(byte value) throws IOException {
+            flushCopy();
+            if (literalLength == literal.length) {
+                flushLiteral();
+            }
+            literal[literalLength++] = value;
+        }
+
+        void finish() throws IOException {
+            flushCopy();
+            flushLiteral();
+            out.writeByte(OP_END);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeLong(copyOffset);
+                out.writeInt(copyLength);
+                copyOffset = -1;
+                copyLength = 0;
+            }
+        }
+
+        private void flushLiteral() throws IOException {
+            if (literalLength > 0) {
+                out.writeByte(OP_DATA);
+                out.writeInt(literalLength);
+                out.write(literal, 0, literalLength);
+                literalLength = 0;
+            }
+        }
+    }
+}
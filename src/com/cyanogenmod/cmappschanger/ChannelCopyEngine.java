@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies with <code>FileChannel.transferTo</code>, which lets the kernel move the data
+ * without passing it through a Java buffer where the platform supports it. When a digest
+ * is wanted the bytes have to be seen anyway, so it falls back to a direct buffer loop.
+ */
+public class ChannelCopyEngine implements CopyEngine {
+    // bounds each transfer so progress is reported while a large file is copied
+    private static final long CHUNK_SIZE = 1024 * 1024;
+
+    public String copy(File src, File dst, CopyProgress progress, boolean digest)
+            throws IOException {
+        FileChannel in = new FileInputStream(src).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(dst).getChannel();
+            try {
+                if (digest) {
+                    return copyDigested(in, out, progress);
+                }
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long count = in.transferTo(position,
+                            Math.min(CHUNK_SIZE, size - position), out);
+                    if (count <= 0) {
+                        throw new IOException("transferTo stalled at " + position + " of " + size);
+                    }
+                    position += count;
+                    if (progress != null) {
+                        progress.add(count);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+
+    private String copyDigested(FileChannel in, FileChannel out, CopyProgress progress)
+            throws IOException {
+        MessageDigest md5 = FileDigests.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) CHUNK_SIZE);
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            md5.update(buffer.duplicate());
+            int count = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            if (progress != null) {
+                progress.add(count);
+            }
+        }
+        out.force(true);
+        return FileDigests.toHex(md5.digest());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Copies a single file. Implementations differ in how the bytes are moved; use
+ * {@link CopyEngines#select(File, File)} to pick one for a given pair of files.
+ */
+public interface CopyEngine {
+    /**
+     * Copies <code>src</code> over <code>dst</code>, replacing any existing file. When
+     * asked for a digest, the source bytes are digested as they stream past, so checking
+     * the copy never needs a second read of the source, and the destination is synced to
+     * disk before returning.
+     *
+     * @param src      Source file.
+     * @param dst      Destination file.
+     * @param progress Receives the bytes as they are written, may be <code>null</code>.
+     * @param digest   Whether to digest the source while copying.
+     * @throws IOException If the copy failed.
+     * @return Hex MD5 of the bytes copied, or <code>null</code> if not asked for.
+     */
+    String copy(File src, File dst, CopyProgress progress, boolean digest) throws IOException;
+}
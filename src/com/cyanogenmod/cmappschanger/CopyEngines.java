@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+
+/**
+ * Picks the {@link CopyEngine} for each file.
+ */
+public class CopyEngines {
+    public static final CopyEngine STREAM  = new StreamCopyEngine();
+    public static final CopyEngine CHANNEL = new ChannelCopyEngine();
+    public static final CopyEngine MAPPED  = new MappedCopyEngine();
+    // only marks the copies for the root shell, a job runs them in its own
+    public static final CopyEngine SHELL   = new ShellCopyEngine(null);
+
+    // below this a plain buffer is cheaper than setting up a channel transfer
+    static final long CHANNEL_THRESHOLD = 64 * 1024;
+    // above this the source is memory-mapped
+    static final long MAPPED_THRESHOLD = 4 * 1024 * 1024;
+
+    private CopyEngines() {
+    }
+
+    /**
+     * Chooses an engine from the destination's writability and the source's size.
+     * Anything going to /system, or that we cannot read or write ourselves, goes through
+     * the root shell.
+     *
+     * @param src Source file.
+     * @param dst Destination file.
+     * @return The engine to use.
+     */
+    public static CopyEngine select(File src, File dst) {
+        if (dst.getPath().startsWith("/system/") || !src.canRead() || !isWritable(dst)) {
+            return SHELL;
+        }
+
+        long size = src.length();
+        if (size >= MAPPED_THRESHOLD) {
+            return MAPPED;
+        } else if (size >= CHANNEL_THRESHOLD) {
+            return CHANNEL;
+        }
+        return STREAM;
+    }
+
+    private static boolean isWritable(File dst) {
+        if (dst.exists()) {
+            return dst.canWrite();
+        }
+        File parent = dst.getAbsoluteFile().getParentFile();
+        return (parent != null) && parent.canWrite();
+    }
+}
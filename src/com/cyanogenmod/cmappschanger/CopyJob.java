@@ -0,0 +1,1251 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * One backup, restore or apply, with no UI attached. A job is set up with the setters,
+ * then {@link #run(String[], String[])} copies every source path to its destination path,
+ * or into an archive or backup store, reporting to a {@link Listener} as it goes. Every
+ * root command goes through the {@link Shell} the job was given, so the same job runs in
+ * the app, from the command line and against a local shell on a plain JVM.
+ */
+public class CopyJob {
+    public static final int OK                = 0;
+    public static final int ERROR_NEED_ROOT   = 1;
+    public static final int ERROR_REMOUNT     = 2;
+    public static final int ERROR_ARCHIVE     = 3;
+    public static final int ERROR_STORE       = 4;
+
+    // what the job is doing when it isn't copying a file
+    public static final int STAGE_PREFLIGHT  = 1;
+    public static final int STAGE_RESTARTING = 2;
+
+    /**
+     * Told about the job's progress, from the threads doing the work.
+     */
+    public interface Listener extends CopyProgress.Listener {
+        void onFileStarted(String path);
+
+        void onStage(int stage);
+
+        void onLog(boolean error, String message);
+    }
+
+    // concurrent copies allowed per destination device
+    private static final int PER_DEVICE_COPIES = 2;
+    // minimum time between two progress updates
+    private static final long PROGRESS_INTERVAL = 250;
+    // how often large copies in flight have their offsets journaled
+    private static final long CHECKPOINT_INTERVAL = 2000;
+
+    private final Shell shell;
+    private final Listener listener;
+    private final Progress progress = new Progress();
+    private final CopyProgress bytes;
+    private RemountManager remountManager = null;
+    private SpacePlanner.SpaceProbe spaceProbe = null;
+    private SpacePlanner.Plan spacePlan = null;
+    private String[] destinationPaths = null;
+    private String[] sourcePaths = null;
+    private CopyResult copyResult = null;
+    private int workers = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private boolean incremental = false;
+    private int unchanged = 0;
+    private File manifestFile = null;
+    private String fingerprint = null;
+    private BackupManifest previousManifest = null;
+    private File archiveTarget = null;
+    private int archiveLevel = AppArchive.STORE;
+    private File archiveSource = null;
+    private File restoreDir = null;
+    private BackupStore store = null;
+    private BackupStore sourceStore = null;
+    private int keepGenerations = 0;
+    private CopyVerifier verifier = null;
+    private boolean preflight = false;
+    private String[] expectedPackages = null;
+    private PreflightValidator.Report preflightReport = null;
+    private ApkMetadata[] installedApps = null;
+    private SelectionProfile profile = null;
+    private File profileFile = null;
+    private File journalFile = null;
+    private String journalName = null;
+    private CopyJournal journal = null;
+    private CopyJournal resume = null;
+    // per entry, where an interrupted copy can carry on from
+    private long[] offsets = null;
+    private final Set<Integer> inFlight = new HashSet<Integer>();
+    // the copies were stopped part way, so the journal is kept for a resume
+    private boolean interrupted = false;
+    private boolean needReboot = false;
+    private boolean restarted = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param shell    Shell to run root commands in.
+     * @param listener Told about progress, may not be <code>null</code>.
+     */
+    public CopyJob(Shell shell, Listener listener) {
+        this.shell = shell;
+        this.listener = listener;
+        bytes = new CopyProgress(PROGRESS_INTERVAL, listener);
+    }
+
+    /**
+     * Sets what holds /system read-write while the shell copies to it. Defaults to the
+     * shared {@link RemountManager}.
+     *
+     * @param manager Remount manager running its commands in this job's shell.
+     */
+    public void setRemountManager(RemountManager manager) {
+        remountManager = manager;
+    }
+
+    /**
+     * Enables skipping files whose destination already has the same contents.
+     *
+     * @param incremental Whether to compare files before copying them.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets how many in-process copies may run at once.
+     *
+     * @param workers Number of copy worker threads.
+     */
+    public void setParallelism(int workers) {
+        this.workers = workers;
+    }
+
+    public int getParallelism() {
+        return workers;
+    }
+
+    /**
+     * Makes this a backup job that records a {@link BackupManifest} of the destination
+     * files once it is done.
+     *
+     * @param file        Where to write the manifest.
+     * @param fingerprint Build fingerprint to record.
+     */
+    public void setManifest(File file, String fingerprint) {
+        manifestFile = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Makes this a backup job that streams every source into one {@link AppArchive}
+     * instead of copying to the destination paths, which then only name the entries.
+     *
+     * @param archive Archive to write.
+     * @param level   <code>AppArchive.STORE</code> or a compression level.
+     */
+    public void setArchiveTarget(File archive, int level) {
+        archiveTarget = archive;
+        archiveLevel = level;
+    }
+
+    /**
+     * Makes this a restore job that takes each source from an {@link AppArchive}, by the
+     * file name of its source path.
+     *
+     * @param archive Archive to read.
+     */
+    public void setArchiveSource(File archive) {
+        archiveSource = archive;
+    }
+
+    /**
+     * Makes this a backup job that adds a new generation to a {@link BackupStore} instead
+     * of copying to the destination paths, which then only name the apps.
+     *
+     * @param store       Store to add to.
+     * @param keep        Number of generations to keep, older ones are pruned.
+     * @param fingerprint Build fingerprint to record.
+     */
+    public void setStoreTarget(BackupStore store, int keep, String fingerprint) {
+        this.store = store;
+        store.setShell(shell);
+        keepGenerations = keep;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Makes this a restore job whose sources are blobs in a {@link BackupStore}. Blobs
+     * stored as deltas are rebuilt and verified before anything is copied.
+     *
+     * @param store Store the source paths point into.
+     */
+    public void setStoreSource(BackupStore store) {
+        sourceStore = store;
+    }
+
+    /**
+     * Checks every copy as it is made. A copy that fails is marked as failed, and no
+     * reboot is asked for after a job with such a failure.
+     *
+     * @param verifier Verifier to check the copies with.
+     */
+    public void setVerifier(CopyVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Checks the whole plan with a {@link PreflightValidator} before anything is copied or
+     * remounted, and copies nothing at all unless every entry passes.
+     *
+     * @param packages Package each source should be, by entry. May be <code>null</code>,
+     *                  as may any element, if it isn't known.
+     */
+    public void setPreflight(String[] packages) {
+        preflight = true;
+        expectedPackages = packages;
+    }
+
+    /**
+     * Plans the copies with a {@link SpacePlanner} once it is known which files will be
+     * written, starts them in the planned order, and copies nothing at all if a device
+     * would run out of space along the way.
+     *
+     * @param space Free space lookup for the destination devices.
+     */
+    public void setSpaceProbe(SpacePlanner.SpaceProbe space) {
+        spaceProbe = space;
+    }
+
+    /**
+     * Tries to bring replaced system apps into use by restarting them, and only asks for
+     * a reboot if a {@link RecoveryPlanner} finds that isn't enough. Only takes effect
+     * together with {@link #setPreflight(String[])}, which reads the new manifests.
+     *
+     * @param installed Metadata of the app each entry replaces, by entry. Any element may
+     *                   be <code>null</code> if it isn't known.
+     */
+    public void setRecovery(ApkMetadata[] installed) {
+        installedApps = installed;
+    }
+
+    /**
+     * Skips every app that already has its replacement from <code>profile</code>
+     * installed, and saves the digests that takes back to the profile.
+     *
+     * @param profile The profile being applied.
+     * @param file    Where the profile is kept.
+     */
+    public void setProfile(SelectionProfile profile, File file) {
+        this.profile = profile;
+        profileFile = file;
+    }
+
+    /**
+     * Keeps a {@link CopyJournal} of the job in <code>file</code> while it runs, so it can
+     * be resumed if the process dies or the copies are interrupted. Only jobs that copy
+     * from files to files are journaled; archive and store jobs don't write anything that
+     * needs finishing.
+     *
+     * @param file      Where to keep the journal.
+     * @param operation Name of the job in the journal.
+     */
+    public void setJournal(File file, String operation) {
+        journalFile = file;
+        journalName = operation;
+    }
+
+    /**
+     * Makes this job finish the one recorded in <code>journal</code>. Entries the journal
+     * has as done are taken as they are, large copies carry on from their last checkpoint,
+     * and a /system left read-write is put back. Run it with the journal's source and
+     * destination paths; the journal is deleted once it has run, unless it was interrupted
+     * again.
+     *
+     * @param journal Journal left by the interrupted job.
+     */
+    public void setResume(CopyJournal journal) {
+        resume = journal;
+        verifier = journal.getVerifier();
+        manifestFile = journal.getManifest();
+        fingerprint = journal.getFingerprint();
+        incremental = journal.isIncremental();
+    }
+
+    /**
+     * Runs the job. Call this once, off the UI thread.
+     *
+     * @param sources      Source path of every entry.
+     * @param destinations Destination path of every entry.
+     * @return <code>OK</code>, or the error that stopped the job.
+     */
+    public int run(String[] sources, String[] destinations) {
+        sourcePaths = sources.clone();
+        destinationPaths = destinations;
+        String[] names = new String[destinationPaths.length];
+        for (int i = 0; i < destinationPaths.length; i++) {
+            names[i] = new File(destinationPaths[i]).getName();
+        }
+        copyResult = new CopyResult(names);
+
+        if (manifestFile != null) {
+            // until the new manifest is written the backup is incomplete
+            previousManifest = BackupManifest.read(manifestFile);
+            manifestFile.delete();
+        }
+
+        if (resume != null) {
+            try {
+                return resumeEntries();
+            } finally {
+                if (!interrupted) {
+                    resume.delete();
+                }
+            }
+        }
+
+        if (archiveTarget != null) {
+            return backupToArchive();
+        }
+
+        if (store != null) {
+            return backupToStore();
+        }
+
+        if (archiveSource != null) {
+            try {
+                if (extractFromArchive()) {
+                    return copyEntries();
+                }
+            } finally {
+                deleteRestoreDir();
+            }
+        } else if (sourceStore != null) {
+            try {
+                materializeFromStore();
+                return copyEntries();
+            } finally {
+                deleteRestoreDir();
+            }
+        } else {
+            if (profile != null) {
+                skipInstalled();
+            }
+            if (!preflight || checkPlan()) {
+                startJournal();
+                try {
+                    return copyEntries();
+                } finally {
+                    if ((journal != null) && !interrupted) {
+                        journal.delete();
+                    }
+                }
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Returns the outcome of every entry.
+     *
+     * @return The result, or <code>null</code> before the job has run.
+     */
+    public CopyResult getResult() {
+        return copyResult;
+    }
+
+    /**
+     * Returns the bytes planned and copied so far.
+     *
+     * @return The job's byte count.
+     */
+    public CopyProgress getProgress() {
+        return bytes;
+    }
+
+    /**
+     * Returns how many entries were skipped because their destination was already the
+     * same.
+     *
+     * @return Number of unchanged entries.
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * Returns the pre-flight report.
+     *
+     * @return The report, or <code>null</code> if the plan wasn't checked.
+     */
+    public PreflightValidator.Report getPreflightReport() {
+        return preflightReport;
+    }
+
+    /**
+     * Returns the space plan.
+     *
+     * @return The plan, or <code>null</code> if the job wasn't planned.
+     */
+    public SpacePlanner.Plan getSpacePlan() {
+        return spacePlan;
+    }
+
+    /**
+     * Returns whether the job rewrote system apps that only come into use after a reboot.
+     *
+     * @return <code>true</code> if the device should be rebooted.
+     */
+    public boolean isRebootNeeded() {
+        return needReboot;
+    }
+
+    /**
+     * Returns whether replaced system apps were restarted instead of asking for a reboot.
+     *
+     * @return <code>true</code> if they were.
+     */
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * Returns whether this job writes a backup.
+     *
+     * @return <code>true</code> for backups to files, an archive or a store.
+     */
+    public boolean isBackup() {
+        return (manifestFile != null) || (store != null);
+    }
+
+    /**
+     * Adds the job's counters to a trace.
+     *
+     * @param metrics The trace of this job.
+     */
+    public void recordMetrics(Metrics metrics) {
+        if (copyResult != null) {
+            metrics.count("job.copied", copyResult.count(CopyResult.COPIED));
+            metrics.count("job.unchanged", copyResult.count(CopyResult.UNCHANGED));
+            metrics.count("job.skipped", copyResult.count(CopyResult.SKIPPED));
+            metrics.count("job.failed", copyResult.count(CopyResult.FAILED));
+        }
+        metrics.count("job.bytes", bytes.getDone());
+        metrics.record("job.kbps", bytes.getAverageRate() / 1024);
+        // a job's own read-write window closes after its grace period, so this only has
+        // the windows that closed while it ran
+        for (RemountManager.Window window : getRemountManager().getHistory()) {
+            if (window.end >= metrics.getStarted()) {
+                metrics.span("remount.window", window.start, window.end, null);
+            }
+        }
+    }
+
+    private RemountManager getRemountManager() {
+        if (remountManager == null) {
+            remountManager = RemountManager.getInstance();
+        }
+        return remountManager;
+    }
+
+    /**
+     * Starts the journal, if one was asked for, with everything already left alone.
+     */
+    private void startJournal() {
+        if (journalFile == null) {
+            return;
+        }
+        try {
+            journal = CopyJournal.create(journalFile, journalName, sourcePaths,
+                    destinationPaths, verifier, manifestFile, fingerprint, incremental);
+        } catch (IOException e) {
+            listener.onLog(true, "Could not start journal: " + e.toString());
+            return;
+        }
+        for (int i = 0; i < sourcePaths.length; i++) {
+            if (copyResult.getStatus(i) == CopyResult.UNCHANGED) {
+                journal.finished(i, CopyResult.UNCHANGED, null);
+            }
+        }
+        copyResult.setJournal(journal);
+    }
+
+    /**
+     * Takes over what the journal says is done and copies the rest.
+     *
+     * @return <code>OK</code>, or the error that stopped the shell copies.
+     */
+    private int resumeEntries() {
+        offsets = new long[sourcePaths.length];
+        int done = 0;
+        for (int i = 0; i < sourcePaths.length; i++) {
+            int status = resume.getStatus(i);
+            if (status == CopyResult.PENDING) {
+                offsets[i] = resume.getOffset(i);
+                continue;
+            }
+            copyResult.setDigest(i, resume.getDigest(i));
+            copyResult.setStatus(i, status, null);
+            if (status == CopyResult.UNCHANGED) {
+                unchanged++;
+            }
+            done++;
+        }
+        listener.onLog(false, "Resuming " + resume.getOperation() + ", " + done + " of "
+                + sourcePaths.length + " entries already done");
+        Metrics.current().count("resume.done", done);
+        journal = resume;
+        copyResult.setJournal(journal);
+        if (resume.isWritable("/system")) {
+            // nothing may be left to copy, but the mount still has to go back
+            getRemountManager().reclaim();
+        }
+        return copyEntries();
+    }
+
+    /**
+     * Marks every app that already has its replacement from the profile as unchanged.
+     */
+    private void skipInstalled() {
+        for (int i = 0; i < sourcePaths.length; i++) {
+            listener.onFileStarted(sourcePaths[i]);
+            if (profile.isInstalled(copyResult.getName(i), new File(sourcePaths[i]),
+                    new File(destinationPaths[i]))) {
+                copyResult.setStatus(i, CopyResult.UNCHANGED, null);
+                unchanged++;
+            }
+        }
+        Metrics.current().count("profile.unchanged", unchanged);
+        if (profile.isDirty()) {
+            try {
+                profile.write(profileFile);
+            } catch (IOException e) {
+                listener.onLog(true, "Could not save profile: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Validates the plan, and fails the whole job if any entry doesn't pass.
+     *
+     * @return <code>true</code> if the plan may be carried out.
+     */
+    private boolean checkPlan() {
+        listener.onStage(STAGE_PREFLIGHT);
+        long start = System.currentTimeMillis();
+        PreflightValidator validator = new PreflightValidator(workers);
+        // only what is still to be copied needs checking
+        String[] sources = new String[sourcePaths.length];
+        for (int i = 0; i < sources.length; i++) {
+            if (copyResult.getStatus(i) == CopyResult.PENDING) {
+                sources[i] = sourcePaths[i];
+            }
+        }
+        try {
+            preflightReport = validator.validate(sources, destinationPaths,
+                    expectedPackages);
+        } catch (InterruptedException e) {
+            listener.onLog(true, e.toString());
+            for (int i = 0; i < sourcePaths.length; i++) {
+                if (copyResult.getStatus(i) == CopyResult.PENDING) {
+                    copyResult.setStatus(i, CopyResult.FAILED, "not checked");
+                }
+            }
+            return false;
+        }
+        Metrics.current().span("preflight", start, System.currentTimeMillis(), null);
+        if (preflightReport.isPassed()) {
+            return true;
+        }
+
+        for (int i = 0; i < sourcePaths.length; i++) {
+            String problem = preflightReport.getProblem(i);
+            if (problem != null) {
+                listener.onLog(true, "Pre-flight check failed: " + problem);
+                Metrics.current().count("preflight.failed");
+                copyResult.setStatus(i, CopyResult.FAILED, problem);
+            } else if (copyResult.getStatus(i) == CopyResult.PENDING) {
+                copyResult.setStatus(i, CopyResult.SKIPPED, null);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies every pending entry from its source path to its destination path.
+     *
+     * @return <code>OK</code>, or the error that stopped the shell copies.
+     */
+    private int copyEntries() {
+        boolean remountRequired = false;
+
+        // pick an engine for every file, everything needing root is batched into one script
+        CopyEngine[] engines = new CopyEngine[sourcePaths.length];
+        for (int i = 0; i < sourcePaths.length; i++) {
+            if (copyResult.getStatus(i) != CopyResult.PENDING) {
+                continue;
+            }
+            if (sourcePaths[i].equals(destinationPaths[i])) {
+                copyResult.setStatus(i, CopyResult.SKIPPED, null);
+                continue;
+            }
+            if (incremental && (archiveSource == null)) {
+                listener.onFileStarted(sourcePaths[i]);
+                if (FileDigests.isUnchanged(new File(sourcePaths[i]),
+                        new File(destinationPaths[i]))) {
+                    copyResult.setStatus(i, CopyResult.UNCHANGED, null);
+                    unchanged++;
+                    continue;
+                }
+            }
+            engines[i] = CopyEngines.select(new File(sourcePaths[i]),
+                    new File(destinationPaths[i]));
+        }
+
+        // the order the copies are started in, which only matters once space is planned
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < sourcePaths.length; i++) {
+            if (engines[i] != null) {
+                order.add(i);
+            }
+        }
+        if (spaceProbe != null) {
+            order = planSpace(engines);
+            if (order == null) {
+                return OK;
+            }
+        }
+        for (int i : order) {
+            if ((engines[i] == CopyEngines.SHELL)
+                    && (destinationPaths[i].indexOf("/system/") == 0)) {
+                remountRequired = true;
+            }
+        }
+
+        // a backup needs the digests for its manifest, and they come free with the copy
+        CopyVerifier check = verifier;
+        if ((check == null) && (manifestFile != null)) {
+            check = new CopyVerifier(null);
+        }
+
+        // in-process copies run on the scheduler while the shell works through its script
+        CopyScheduler scheduler = new CopyScheduler(workers, PER_DEVICE_COPIES);
+        scheduler.setVerifier(check);
+        scheduler.setOrdered(spacePlan != null);
+        List<Integer> shellCopies = new ArrayList<Integer>();
+        for (int i : order) {
+            if (engines[i] == CopyEngines.SHELL) {
+                shellCopies.add(i);
+            } else if (engines[i] != null) {
+                scheduler.add(i, new File(sourcePaths[i]), new File(destinationPaths[i]),
+                        (getOffset(i) > 0) ? new ResumeCopyEngine(getOffset(i)) : engines[i]);
+            }
+        }
+
+        final long[] sizes = new long[sourcePaths.length];
+        for (int i = 0; i < sourcePaths.length; i++) {
+            if (engines[i] != null) {
+                sizes[i] = new File(sourcePaths[i]).length();
+                bytes.addPlanned(sizes[i]);
+            }
+        }
+
+        if (spacePlan == null) {
+            // largest first, so the last wave of the script isn't one big file on its own
+            Collections.sort(shellCopies, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return (sizes[a] < sizes[b]) ? 1 : ((sizes[a] == sizes[b]) ? 0 : -1);
+                }
+            });
+        }
+        CopyScript script = new CopyScript(PER_DEVICE_COPIES);
+        script.setVerifier(check);
+        for (int i : shellCopies) {
+            if (getOffset(i) > 0) {
+                script.addResumed(i, sourcePaths[i], destinationPaths[i], getOffset(i));
+            } else {
+                script.add(i, sourcePaths[i], destinationPaths[i]);
+            }
+        }
+
+        int error = OK;
+        Timer checkpoints = startCheckpoints(sizes);
+        scheduler.start(copyResult, progress, bytes);
+        if (!script.isEmpty()) {
+            error = runScript(script, remountRequired);
+        }
+        try {
+            scheduler.await();
+        } catch (InterruptedException e) {
+            listener.onLog(true, e.toString());
+            interrupted = true;
+        } finally {
+            if (checkpoints != null) {
+                checkpoints.cancel();
+            }
+        }
+        if (bytes.getTotal() > 0) {
+            listener.onLog(false, "Copied " + bytes.getDone() + " bytes at "
+                    + bytes.getAverageRate() / 1024 + " KB/s");
+        }
+
+        if (error != OK) {
+            return error;
+        }
+
+        if (manifestFile != null) {
+            writeManifest();
+        }
+
+        boolean systemChanged = false;
+        boolean corrupt = false;
+        for (int i = 0; i < sourcePaths.length; i++) {
+            if (copyResult.getStatus(i) == CopyResult.FAILED) {
+                listener.onLog(true, "Error copying " + sourcePaths[i] + ": \""
+                        + copyResult.getError(i) + "\"");
+                if ((copyResult.getError(i) != null)
+                        && copyResult.getError(i).startsWith(CopyVerifier.FAILURE_PREFIX)) {
+                    corrupt = true;
+                }
+            } else if ((copyResult.getStatus(i) == CopyResult.COPIED)
+                    && (destinationPaths[i].indexOf("/system/") == 0)) {
+                // If we've overwritten any of the core apps, we need to reboot
+                systemChanged = true;
+            }
+        }
+
+        if (systemChanged && corrupt) {
+            // booting into a bad APK in /system can leave the phone stuck, let the user
+            // fix the failed apps first
+            listener.onLog(true, "Not asking for a reboot, some copies did not verify");
+        } else if (systemChanged && !recover()) {
+            needReboot = true;
+        }
+        return OK;
+    }
+
+    /**
+     * Works out the order to start the copies in so that no device runs out of space
+     * partway through. A copy truncates its destination before writing, so the space it
+     * holds never goes above its final size; with the copies to each device started in
+     * the planned order, whatever the concurrency, the device never holds more than the
+     * plan's peak. Every device is left to either the shell or the scheduler, since two
+     * orders running side by side would each keep only their own. If a device can't take
+     * its peak, its entries fail and everything else is skipped.
+     *
+     * @param engines Engine of every entry to copy, <code>null</code> for the rest.
+     * @return The entries in the order to start them, or <code>null</code> if the plan
+     *          doesn't fit.
+     */
+    private List<Integer> planSpace(CopyEngine[] engines) {
+        long start = System.currentTimeMillis();
+        String[] sources = new String[sourcePaths.length];
+        for (int i = 0; i < sources.length; i++) {
+            if (engines[i] != null) {
+                sources[i] = sourcePaths[i];
+            }
+        }
+        try {
+            spacePlan = new SpacePlanner(workers, spaceProbe).plan(sources, destinationPaths);
+        } catch (InterruptedException e) {
+            listener.onLog(true, e.toString());
+            for (int i = 0; i < sourcePaths.length; i++) {
+                if (copyResult.getStatus(i) == CopyResult.PENDING) {
+                    copyResult.setStatus(i, CopyResult.FAILED, "not planned");
+                }
+            }
+            return null;
+        }
+        Metrics.current().span("space.plan", start, System.currentTimeMillis(), null);
+        for (SpacePlanner.Device device : spacePlan.getDevices()) {
+            listener.onLog(false, "Space on " + device.root + ": " + device.getAvailable()
+                    + " bytes free, " + device.getPeak() + " at peak, "
+                    + device.getNet() + " net");
+        }
+
+        if (!spacePlan.isPassed()) {
+            for (int i = 0; i < sourcePaths.length; i++) {
+                String problem = spacePlan.getProblem(i);
+                if (problem != null) {
+                    listener.onLog(true, "Space check failed: " + problem);
+                    Metrics.current().count("space.failed");
+                    copyResult.setStatus(i, CopyResult.FAILED, problem);
+                } else if (copyResult.getStatus(i) == CopyResult.PENDING) {
+                    copyResult.setStatus(i, CopyResult.SKIPPED, null);
+                }
+            }
+            return null;
+        }
+
+        Set<String> shellDevices = new HashSet<String>();
+        for (int i = 0; i < engines.length; i++) {
+            if (engines[i] == CopyEngines.SHELL) {
+                shellDevices.add(spacePlan.getRoot(i));
+            }
+        }
+        for (int i = 0; i < engines.length; i++) {
+            if ((engines[i] != null) && shellDevices.contains(spacePlan.getRoot(i))) {
+                engines[i] = CopyEngines.SHELL;
+            }
+        }
+        return spacePlan.getOrder();
+    }
+
+    private long getOffset(int index) {
+        return (offsets != null) ? offsets[index] : 0;
+    }
+
+    /**
+     * Journals how far every large copy in flight has got, every
+     * <code>CHECKPOINT_INTERVAL</code>. The destination's length is only a hint, a resumed
+     * copy checks the bytes before it keeps them.
+     *
+     * @param sizes Size of every entry.
+     * @return The timer to cancel once the copies are done, or <code>null</code> if the
+     *          job isn't journaled.
+     */
+    private Timer startCheckpoints(final long[] sizes) {
+        if (journal == null) {
+            return null;
+        }
+        Timer timer = new Timer("CopyJob checkpoints", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Integer[] copying;
+                synchronized (inFlight) {
+                    copying = inFlight.toArray(new Integer[inFlight.size()]);
+                }
+                for (int i : copying) {
+                    if (copyResult.getStatus(i) != CopyResult.PENDING) {
+                        synchronized (inFlight) {
+                            inFlight.remove(i);
+                        }
+                    } else if (sizes[i] >= CopyJournal.RESUME_THRESHOLD) {
+                        journal.checkpoint(i, new File(destinationPaths[i]).length());
+                    }
+                }
+            }
+        }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL);
+        return timer;
+    }
+
+    /**
+     * Restarts the replaced system apps if that is all they need.
+     *
+     * @return <code>true</code> if no reboot is needed.
+     */
+    private boolean recover() {
+        if ((installedApps == null) || (preflightReport == null)) {
+            return false;
+        }
+        RecoveryPlanner planner = new RecoveryPlanner(shell);
+        for (int i = 0; i < destinationPaths.length; i++) {
+            if ((copyResult.getStatus(i) == CopyResult.COPIED)
+                    && (destinationPaths[i].indexOf("/system/") == 0)) {
+                planner.add(destinationPaths[i], installedApps[i],
+                        preflightReport.getMetadata(i));
+            }
+        }
+        if (planner.plan() == RecoveryPlanner.REBOOT) {
+            return false;
+        }
+        listener.onStage(STAGE_RESTARTING);
+        try {
+            restarted = planner.recover();
+        } catch (InterruptedException e) {
+            listener.onLog(true, e.toString());
+            return false;
+        }
+        listener.onLog(false, restarted ? "Restarted replaced apps, no reboot needed"
+                : "Replaced apps didn't restart cleanly, asking for a reboot");
+        return restarted;
+    }
+
+    /**
+     * Records every successfully copied destination file in the backup manifest. Digests
+     * are taken from the copy itself, or carried over from the previous manifest for files
+     * that were not rewritten.
+     */
+    private void writeManifest() {
+        List<BackupManifest.Entry> entries = new ArrayList<BackupManifest.Entry>();
+        boolean complete = true;
+
+        for (int i = 0; i < destinationPaths.length; i++) {
+            if (copyResult.getStatus(i) == CopyResult.FAILED) {
+                complete = false;
+                continue;
+            }
+
+            String name = copyResult.getName(i);
+            File dst = new File(destinationPaths[i]);
+            long size = dst.length();
+            long mtime = dst.lastModified();
+            BackupManifest.Entry old = (previousManifest != null)
+                    ? previousManifest.get(name) : null;
+            // a copied file was digested on its way through, no need to read it again
+            String digest = copyResult.getDigest(i);
+            if (digest != null) {
+                entries.add(new BackupManifest.Entry(name, size, mtime, digest));
+                continue;
+            }
+            if ((old != null) && (old.size == size) && (old.mtime == mtime)) {
+                digest = old.digest;
+            } else {
+                try {
+                    digest = FileDigests.digest(dst);
+                } catch (IOException e) {
+                    listener.onLog(true, e.toString());
+                    complete = false;
+                    continue;
+                }
+            }
+            entries.add(new BackupManifest.Entry(name, size, mtime, digest));
+        }
+
+        writeManifest(entries, complete, null);
+    }
+
+    /**
+     * Writes the backup manifest.
+     *
+     * @param entries  Every app that made it into the backup.
+     * @param complete Whether every app did.
+     * @param archive  Name of the archive holding the apps, or <code>null</code> for
+     *                  loose files.
+     */
+    private void writeManifest(List<BackupManifest.Entry> entries, boolean complete,
+            String archive) {
+        BackupManifest manifest = new BackupManifest(System.currentTimeMillis(), fingerprint,
+                complete);
+        manifest.setArchive(archive);
+        for (BackupManifest.Entry entry : entries) {
+            manifest.add(entry);
+        }
+        try {
+            manifest.write(manifestFile);
+        } catch (IOException e) {
+            listener.onLog(true, "Could not write backup manifest: " + e.toString());
+        }
+    }
+
+    /**
+     * Forwards file starts from the copy workers and the shell script to the listener,
+     * and counts the bytes of each shell copy once it is done.
+     */
+    private class Progress implements CopyScheduler.Listener, CopyScript.Listener {
+        public void onFileStarted(int index) {
+            synchronized (inFlight) {
+                inFlight.add(index);
+            }
+            listener.onFileStarted(sourcePaths[index]);
+        }
+
+        public void onFileFinished(int index) {
+            // the shell copies a file in one go, count it when its end marker comes back
+            bytes.add(new File(sourcePaths[index]).length());
+        }
+    }
+
+    /**
+     * Runs the shell part of the job, holding /system read-write around it if needed.
+     *
+     * @return <code>OK</code> or the error that stopped it.
+     */
+    private int runScript(CopyScript script, boolean remountRequired) {
+        RemountManager remount = getRemountManager();
+        if (remountRequired) {
+            listener.onLog(false, "Remounting /system");
+            boolean ours;
+            try {
+                ours = remount.acquire();
+            } catch (IOException e) {
+                listener.onLog(true, e.toString());
+                listener.onLog(true, "Could not remount, returning");
+                return ERROR_REMOUNT;
+            }
+            if (ours && (journal != null)) {
+                // a mount that was writable before the job is left as the user had it
+                journal.remounted("/system");
+            }
+        }
+
+        try {
+            script.run(shell, copyResult, progress);
+        } catch (IOException e) {
+            listener.onLog(true, e.toString());
+            return ERROR_NEED_ROOT;
+        } finally {
+            if (remountRequired) {
+                // always goes back to read-only, even if the copies failed
+                remount.release();
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Streams every source into the archive and records it in the manifest.
+     *
+     * @return <code>OK</code>, or <code>ERROR_ARCHIVE</code> if it could not be created.
+     */
+    private int backupToArchive() {
+        AppArchive.Writer writer;
+        try {
+            writer = new AppArchive.Writer(archiveTarget, archiveLevel);
+        } catch (IOException e) {
+            listener.onLog(true, "Could not create archive: " + e.toString());
+            return ERROR_ARCHIVE;
+        }
+
+        List<BackupManifest.Entry> entries = new ArrayList<BackupManifest.Entry>();
+        planSources();
+        try {
+            for (int i = 0; i < sourcePaths.length; i++) {
+                listener.onFileStarted(sourcePaths[i]);
+                File src = new File(sourcePaths[i]);
+                try {
+                    AppArchive.Entry entry = writer.add(copyResult.getName(i), src);
+                    bytes.add(entry.size);
+                    entries.add(new BackupManifest.Entry(entry.name, entry.size, entry.mtime,
+                            entry.digest));
+                    copyResult.setStatus(i, CopyResult.COPIED, null);
+                } catch (IOException e) {
+                    listener.onLog(true, "Error archiving " + sourcePaths[i] + ": \""
+                            + e.toString() + "\"");
+                    copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+                }
+            }
+            writer.close();
+        } catch (IOException e) {
+            listener.onLog(true, "Could not finish archive: " + e.toString());
+            writer.abort();
+            for (int i = 0; i < sourcePaths.length; i++) {
+                copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+            }
+            return OK;
+        }
+
+        if (manifestFile != null) {
+            writeManifest(entries, copyResult.count(CopyResult.FAILED) == 0,
+                    archiveTarget.getName());
+        }
+        return OK;
+    }
+
+    /**
+     * Extracts the sources that differ from their destinations into a scratch directory
+     * and points the job at the extracted files. Entries whose destination already
+     * matches the archived digest are marked unchanged without being extracted.
+     *
+     * @return <code>false</code> if the archive could not be opened.
+     */
+    private boolean extractFromArchive() {
+        AppArchive.Reader reader;
+        try {
+            reader = new AppArchive.Reader(archiveSource);
+        } catch (IOException e) {
+            listener.onLog(true, "Could not open archive: " + e.toString());
+            for (int i = 0; i < sourcePaths.length; i++) {
+                copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+            }
+            return false;
+        }
+
+        restoreDir = new File(archiveSource.getParentFile(), ".restore");
+        restoreDir.mkdirs();
+        try {
+            for (int i = 0; i < sourcePaths.length; i++) {
+                String name = new File(sourcePaths[i]).getName();
+                AppArchive.Entry entry = reader.get(name);
+                File dst = new File(destinationPaths[i]);
+                listener.onFileStarted(sourcePaths[i]);
+
+                if (entry == null) {
+                    copyResult.setStatus(i, CopyResult.FAILED, name + " is not in the archive");
+                    continue;
+                }
+                if (incremental && isUnchanged(entry, dst)) {
+                    copyResult.setStatus(i, CopyResult.UNCHANGED, null);
+                    unchanged++;
+                    continue;
+                }
+
+                File extracted = new File(restoreDir, name);
+                try {
+                    reader.extract(name, extracted);
+                    sourcePaths[i] = extracted.getPath();
+                } catch (IOException e) {
+                    copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // read-only, nothing lost
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds every source blob that is stored as a delta into a scratch directory and
+     * points the job at the rebuilt file.
+     */
+    private void materializeFromStore() {
+        restoreDir = new File(sourceStore.getRoot(), ".restore");
+        restoreDir.mkdirs();
+        for (int i = 0; i < sourcePaths.length; i++) {
+            String digest = new File(sourcePaths[i]).getName();
+            if (!sourceStore.isDelta(digest)) {
+                continue;
+            }
+            listener.onFileStarted(sourcePaths[i]);
+            try {
+                sourcePaths[i] = sourceStore.materialize(digest,
+                        new File(restoreDir, digest)).getPath();
+            } catch (IOException e) {
+                listener.onLog(true, "Error rebuilding " + copyResult.getName(i) + ": \""
+                        + e.toString() + "\"");
+                copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Plans every source for the byte count, for jobs that go through all of them.
+     */
+    private void planSources() {
+        for (String path : sourcePaths) {
+            bytes.addPlanned(new File(path).length());
+        }
+    }
+
+    private static boolean isUnchanged(AppArchive.Entry entry, File dst) {
+        if (!dst.canRead() || (dst.length() != entry.size)) {
+            return false;
+        }
+        try {
+            return FileDigests.digest(dst).equals(entry.digest);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void deleteRestoreDir() {
+        if (restoreDir == null) {
+            return;
+        }
+        File[] files = restoreDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        restoreDir.delete();
+    }
+
+    /**
+     * Adds every source to the store as a new generation. Apps whose size and time match
+     * the newest generation reuse its blob without being read; the rest are digested and
+     * only copied if no blob with that digest exists yet.
+     *
+     * @return <code>OK</code>, or <code>ERROR_STORE</code> if the generation could not be
+     *          recorded.
+     */
+    private int backupToStore() {
+        BackupManifest previous = store.latest();
+        List<BackupManifest.Entry> entries = new ArrayList<BackupManifest.Entry>();
+        planSources();
+
+        for (int i = 0; i < sourcePaths.length; i++) {
+            listener.onFileStarted(sourcePaths[i]);
+            String name = copyResult.getName(i);
+            File src = new File(sourcePaths[i]);
+            long size = src.length();
+            long mtime = src.lastModified();
+            BackupManifest.Entry old = (previous != null) ? previous.get(name) : null;
+
+            try {
+                String digest;
+                if ((old != null) && (old.size == size) && (old.mtime == mtime)
+                        && store.hasBlob(old.digest)) {
+                    digest = old.digest;
+                    copyResult.setStatus(i, CopyResult.UNCHANGED, null);
+                    unchanged++;
+                } else {
+                    digest = FileDigests.digest(src);
+                    if (store.addBlob(src, digest, (old != null) ? old.digest : null)) {
+                        copyResult.setStatus(i, CopyResult.COPIED, null);
+                    } else {
+                        copyResult.setStatus(i, CopyResult.UNCHANGED, null);
+                        unchanged++;
+                    }
+                }
+                entries.add(new BackupManifest.Entry(name, size, mtime, digest));
+                bytes.add(size);
+            } catch (IOException e) {
+                listener.onLog(true, "Error storing " + sourcePaths[i] + ": \""
+                        + e.toString() + "\"");
+                copyResult.setStatus(i, CopyResult.FAILED, e.toString());
+            }
+        }
+
+        BackupManifest generation = new BackupManifest(System.currentTimeMillis(),
+                fingerprint, copyResult.count(CopyResult.FAILED) == 0);
+        for (BackupManifest.Entry entry : entries) {
+            generation.add(entry);
+        }
+        try {
+            store.commitGeneration(generation);
+        } catch (IOException e) {
+            // its new blobs stay queued as garbage until the next collection
+            listener.onLog(true, "Could not record backup generation: " + e.toString());
+            return ERROR_STORE;
+        }
+        // the generation is safe, a failed clean-up only costs space until the next one
+        try {
+            store.prune(keepGenerations);
+            int deleted = store.collectGarbage();
+            listener.onLog(false, "Backup store: " + deleted + " unreferenced blobs deleted");
+        } catch (IOException e) {
+            listener.onLog(true, "Could not clean up backup store: " + e.toString());
+        }
+        return OK;
+    }
+}
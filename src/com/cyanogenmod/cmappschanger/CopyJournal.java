@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only record of a copy job, so a job cut short by the process dying can be picked
+ * up where it stopped. The plan is written first, then one line per finished entry, per
+ * checkpointed offset of a large copy and per remount, each synced to disk before the
+ * job moves on. A cut-off last line is ignored when the journal is read back.
+ */
+public class CopyJournal {
+    public static final String FILE_NAME = "copy-journal";
+    private static final String MAGIC = "cmac-journal 1";
+    // copies smaller than this start over rather than resume
+    static final long RESUME_THRESHOLD = 1024 * 1024;
+    // offsets are kept on this boundary, which is also the block size of a shell resume
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final File file;
+    private String operation = null;
+    private String[] sources = null;
+    private String[] destinations = null;
+    private String[] expected = null;
+    private boolean verify = false;
+    private boolean readback = false;
+    private boolean incremental = false;
+    private File manifest = null;
+    private String fingerprint = null;
+    private int[] status = null;
+    private String[] digests = null;
+    private long[] offsets = null;
+    // mount points the job made writable and did not put back
+    private final List<String> writable = new ArrayList<String>();
+    private FileOutputStream out = null;
+
+    private CopyJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts a journal for a new job, replacing any older one in <code>file</code>.
+     *
+     * @param file         Where to keep the journal.
+     * @param operation    Name of the job.
+     * @param sources      Source path of every entry.
+     * @param destinations Destination path of every entry.
+     * @param verifier     Verifier the job checks its copies with, or <code>null</code>.
+     * @param manifest     Backup manifest the job writes, or <code>null</code>.
+     * @param fingerprint  Build fingerprint for the manifest.
+     * @param incremental  Whether the job skips files that are already identical.
+     * @return The journal, open for the job's records.
+     * @throws IOException If the journal could not be written.
+     */
+    public static CopyJournal create(File file, String operation, String[] sources,
+            String[] destinations, CopyVerifier verifier, File manifest, String fingerprint,
+            boolean incremental) throws IOException {
+        CopyJournal journal = new CopyJournal(file);
+        journal.operation = operation;
+        journal.sources = sources.clone();
+        journal.destinations = destinations.clone();
+        journal.allocate();
+        if (verifier != null) {
+            journal.verify = true;
+            journal.readback = verifier.isReadback();
+            for (int i = 0; i < sources.length; i++) {
+                journal.expected[i] = verifier.getExpected(i);
+            }
+        }
+        journal.manifest = manifest;
+        journal.fingerprint = fingerprint;
+        journal.incremental = incremental;
+
+        StringBuilder plan = new StringBuilder(MAGIC + "\n");
+        plan.append("job\t" + operation + "\n");
+        if (journal.verify) {
+            plan.append("verify\t" + (journal.readback ? "readback" : "stream") + "\n");
+        }
+        if (manifest != null) {
+            plan.append("manifest\t" + manifest.getPath() + "\t"
+                    + ((fingerprint != null) ? fingerprint : "") + "\n");
+        }
+        if (incremental) {
+            plan.append("incremental\n");
+        }
+        for (int i = 0; i < sources.length; i++) {
+            plan.append("copy\t" + i + "\t" + sources[i] + "\t" + destinations[i] + "\t"
+                    + ((journal.expected[i] != null) ? journal.expected[i] : "") + "\n");
+        }
+        // without this line the plan itself was cut off, and there is nothing to resume
+        plan.append("plan\t" + sources.length + "\n");
+
+        file.getParentFile().mkdirs();
+        journal.out = new FileOutputStream(file);
+        journal.append(plan.toString());
+        return journal;
+    }
+
+    /**
+     * Reads the journal a job left behind and opens it for further records.
+     *
+     * @param file Journal file.
+     * @return The journal, or <code>null</code> if there is none or its plan is unreadable.
+     */
+    public static CopyJournal read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        CopyJournal journal = new CopyJournal(file);
+        try {
+            if (!journal.load()) {
+                return null;
+            }
+            journal.out = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            return null;
+        }
+        return journal;
+    }
+
+    private void allocate() {
+        expected = new String[sources.length];
+        status = new int[sources.length];
+        digests = new String[sources.length];
+        offsets = new long[sources.length];
+    }
+
+    private boolean load() throws IOException {
+        List<String> src = new ArrayList<String>();
+        List<String> dst = new ArrayList<String>();
+        List<String> sums = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new StringReader(readComplete()));
+        try {
+            if (!MAGIC.equals(in.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (sources == null) {
+                        if (fields[0].equals("job")) {
+                            operation = fields[1];
+                        } else if (fields[0].equals("verify")) {
+                            verify = true;
+                            readback = fields[1].equals("readback");
+                        } else if (fields[0].equals("manifest")) {
+                            manifest = new File(fields[1]);
+                            fingerprint = (fields[2].length() > 0) ? fields[2] : null;
+                        } else if (fields[0].equals("incremental")) {
+                            incremental = true;
+                        } else if (fields[0].equals("copy")) {
+                            src.add(fields[2]);
+                            dst.add(fields[3]);
+                            sums.add((fields[4].length() > 0) ? fields[4] : null);
+                        } else if (fields[0].equals("plan")) {
+                            if (Integer.parseInt(fields[1]) != src.size()) {
+                                return false;
+                            }
+                            sources = src.toArray(new String[src.size()]);
+                            destinations = dst.toArray(new String[dst.size()]);
+                            allocate();
+                            sums.toArray(expected);
+                        }
+                    } else if (fields[0].equals("done")) {
+                        int index = Integer.parseInt(fields[1]);
+                        status[index] = Integer.parseInt(fields[2]);
+                        digests[index] = (fields[3].length() > 0) ? fields[3] : null;
+                    } else if (fields[0].equals("offset")) {
+                        offsets[Integer.parseInt(fields[1])] = Long.parseLong(fields[2]);
+                    } else if (fields[0].equals("mount")) {
+                        writable.add(fields[1]);
+                    }
+                } catch (RuntimeException e) {
+                    // malformed line
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return sources != null;
+    }
+
+    // the journal up to its last complete line, the rest was being written when the job
+    // stopped
+    private String readComplete() throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        int end = data.length;
+        while ((end > 0) && (data[end - 1] != '\n')) {
+            end--;
+        }
+        return new String(data, 0, end, "UTF-8");
+    }
+
+    /**
+     * Records that an entry is done with, so a resumed job leaves it alone.
+     *
+     * @param index  Index of the entry.
+     * @param status <code>CopyResult.COPIED</code> or <code>CopyResult.UNCHANGED</code>.
+     * @param digest Digest of the copy, may be <code>null</code>.
+     */
+    public synchronized void finished(int index, int status, String digest) {
+        this.status[index] = status;
+        digests[index] = digest;
+        append("done\t" + index + "\t" + status + "\t" + ((digest != null) ? digest : "")
+                + "\n");
+    }
+
+    /**
+     * Records how far a large copy has got. Only offsets that moved forward by at least a
+     * block are written.
+     *
+     * @param index  Index of the entry.
+     * @param offset Bytes of the destination written so far.
+     */
+    public synchronized void checkpoint(int index, long offset) {
+        offset -= offset % BLOCK_SIZE;
+        if (offset <= offsets[index]) {
+            return;
+        }
+        offsets[index] = offset;
+        append("offset\t" + index + "\t" + offset + "\n");
+    }
+
+    /**
+     * Records that the job made a mount point writable. Putting it back happens after the
+     * job lets go, on a timer, so it is never recorded; a job that got as far as deleting
+     * its journal has let go.
+     *
+     * @param mountPoint The mount point.
+     */
+    public synchronized void remounted(String mountPoint) {
+        if (!writable.contains(mountPoint)) {
+            writable.add(mountPoint);
+            append("mount\t" + mountPoint + "\n");
+        }
+    }
+
+    /**
+     * Removes the journal once its job has run to the end, whatever the outcome.
+     */
+    public synchronized void delete() {
+        close();
+        file.delete();
+    }
+
+    private void append(String text) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(text.getBytes("UTF-8"));
+            out.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            // losing the journal only costs a resumed job some work it already did
+            close();
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing buffered, every record was synced
+            }
+            out = null;
+        }
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String[] getSources() {
+        return sources.clone();
+    }
+
+    public String[] getDestinations() {
+        return destinations.clone();
+    }
+
+    /**
+     * Returns the verifier the journaled job checked its copies with.
+     *
+     * @return A verifier with the same expectations, or <code>null</code> if there was none.
+     */
+    public CopyVerifier getVerifier() {
+        if (!verify) {
+            return null;
+        }
+        CopyVerifier verifier = new CopyVerifier(expected.clone());
+        verifier.setReadback(readback);
+        return verifier;
+    }
+
+    public File getManifest() {
+        return manifest;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Returns how an entry ended, if it did.
+     *
+     * @param index Index of the entry.
+     * @return <code>CopyResult.PENDING</code> if it still needs copying.
+     */
+    public synchronized int getStatus(int index) {
+        return status[index];
+    }
+
+    public synchronized String getDigest(int index) {
+        return digests[index];
+    }
+
+    /**
+     * Returns the last checkpoint of an entry.
+     *
+     * @param index Index of the entry.
+     * @return Bytes known to have been written, a multiple of <code>BLOCK_SIZE</code>.
+     */
+    public synchronized long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns whether the job left a mount point writable.
+     *
+     * @param mountPoint The mount point.
+     * @return <code>true</code> if it was remounted read-write.
+     */
+    public synchronized boolean isWritable(String mountPoint) {
+        return writable.contains(mountPoint);
+    }
+}
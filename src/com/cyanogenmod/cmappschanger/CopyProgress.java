@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+/**
+ * Counts the bytes of a copy job as they are written, from any number of threads, and
+ * keeps a smoothed throughput figure for an ETA. The listener is called at most once per
+ * interval, from whichever thread crossed it, so the UI isn't flooded with updates.
+ */
+public class CopyProgress {
+    /**
+     * Called from the copying thread at most once per interval.
+     */
+    public interface Listener {
+        void onProgress(CopyProgress progress);
+    }
+
+    // weight of the newest sample in the throughput average
+    private static final double SMOOTHING = 0.3;
+
+    private final long interval;
+    private final Listener listener;
+    private long total = 0;
+    private long done = 0;
+    private long startTime = 0;
+    private long sampleTime = 0;
+    private long sampleDone = 0;
+    private double rate = -1;
+
+    /**
+     * Class constructor.
+     *
+     * @param interval Minimum milliseconds between two listener calls.
+     * @param listener Told about progress, may be <code>null</code>.
+     */
+    public CopyProgress(long interval, Listener listener) {
+        this.interval = interval;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds to the number of bytes the job expects to write.
+     *
+     * @param bytes Bytes planned.
+     */
+    public synchronized void addPlanned(long bytes) {
+        total += bytes;
+    }
+
+    /**
+     * Records bytes that have been written.
+     *
+     * @param bytes Bytes written since the last call.
+     */
+    public void add(long bytes) {
+        boolean publish = false;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (startTime == 0) {
+                startTime = now;
+                sampleTime = now;
+            }
+            done += bytes;
+            if (now - sampleTime >= interval) {
+                double current = (done - sampleDone) * 1000.0 / (now - sampleTime);
+                rate = (rate < 0) ? current : SMOOTHING * current + (1 - SMOOTHING) * rate;
+                sampleTime = now;
+                sampleDone = done;
+                publish = true;
+            }
+        }
+        // outside the lock, the listener may well call back into the getters
+        if (publish && (listener != null)) {
+            listener.onProgress(this);
+        }
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized long getDone() {
+        return Math.min(done, total);
+    }
+
+    /**
+     * Returns the smoothed throughput.
+     *
+     * @return Bytes per second, or <code>-1</code> until the first interval has passed.
+     */
+    public synchronized long getRate() {
+        return (long)rate;
+    }
+
+    /**
+     * Returns the average throughput since the first byte.
+     *
+     * @return Bytes per second, or <code>0</code> if nothing was written yet.
+     */
+    public synchronized long getAverageRate() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return ((startTime == 0) || (elapsed <= 0)) ? 0 : done * 1000 / elapsed;
+    }
+
+    /**
+     * Estimates the time left at the current throughput.
+     *
+     * @return Milliseconds left, or <code>-1</code> if there is no estimate yet.
+     */
+    public synchronized long getEtaMillis() {
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long)(Math.max(0, total - done) * 1000 / rate);
+    }
+}
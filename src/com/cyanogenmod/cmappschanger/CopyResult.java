@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-file outcome of a copy job. Every entry of the job starts out pending and is marked
+ * as copied, skipped, unchanged or failed as the job runs.
+ */
+public class CopyResult {
+    public static final int PENDING = 0;
+    public static final int COPIED  = 1;
+    public static final int SKIPPED = 2;
+    public static final int FAILED  = 3;
+    // skipped because the destination already had the same contents
+    public static final int UNCHANGED = 4;
+
+    private final String[] names;
+    private final int[] status;
+    private final String[] errors;
+    private final String[] digests;
+    private CopyJournal journal = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param names Display name of every entry in the job.
+     */
+    public CopyResult(String[] names) {
+        this.names = names;
+        status = new int[names.length];
+        errors = new String[names.length];
+        digests = new String[names.length];
+    }
+
+    /**
+     * Records every entry that is done with in <code>journal</code> as soon as it is.
+     *
+     * @param journal Journal of the job.
+     */
+    public void setJournal(CopyJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Records the outcome of one entry.
+     *
+     * @param index  Index of the entry in the job.
+     * @param status One of <code>COPIED</code>, <code>SKIPPED</code>, <code>UNCHANGED</code>
+     *                or <code>FAILED</code>.
+     * @param error  Reason for a failure, may be <code>null</code>.
+     */
+    public void setStatus(int index, int status, String error) {
+        String digest;
+        synchronized (this) {
+            this.status[index] = status;
+            errors[index] = error;
+            digest = digests[index];
+        }
+        // synced outside the lock, other workers keep going meanwhile
+        if ((journal != null) && ((status == COPIED) || (status == UNCHANGED))) {
+            journal.finished(index, status, digest);
+        }
+    }
+
+    public synchronized int getStatus(int index) {
+        return status[index];
+    }
+
+    public synchronized String getError(int index) {
+        return errors[index];
+    }
+
+    /**
+     * Records the digest of the bytes copied for an entry, as computed during the copy.
+     *
+     * @param index  Index of the entry in the job.
+     * @param digest Hex digest.
+     */
+    public synchronized void setDigest(int index, String digest) {
+        digests[index] = digest;
+    }
+
+    /**
+     * Returns the digest computed while copying an entry.
+     *
+     * @param index Index of the entry in the job.
+     * @return Hex digest, or <code>null</code> if the entry wasn't copied with one.
+     */
+    public synchronized String getDigest(int index) {
+        return digests[index];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Counts the entries in the given state.
+     *
+     * @param state One of the status constants.
+     * @return Number of entries in <code>state</code>.
+     */
+    public synchronized int count(int state) {
+        int count = 0;
+        for (int i = 0; i < status.length; i++) {
+            if (status[i] == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the names of all failed entries.
+     *
+     * @return <code>List</code> of failed entry names, in job order.
+     */
+    public synchronized List<String> getFailedNames() {
+        List<String> failed = new ArrayList<String>();
+        for (int i = 0; i < status.length; i++) {
+            if (status[i] == FAILED) {
+                failed.add(names[i]);
+            }
+        }
+        return failed;
+    }
+}
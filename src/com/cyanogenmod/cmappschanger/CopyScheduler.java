@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs in-process copies on a fixed number of worker threads. Work is handed out largest
+ * file first so that a big APK doesn't end up running alone at the end of the job, and
+ * each destination device only gets a limited number of concurrent writers, since
+ * /system and the sdcard are separate block devices. With a {@link CopyVerifier}, a copy
+ * that doesn't verify is deleted and marked as failed. Copies cut short by an interrupt
+ * fail too; one being resumed keeps what it wrote, for the journal to carry on from.
+ */
+public class CopyScheduler {
+    /**
+     * Notified from the worker threads.
+     */
+    public interface Listener {
+        void onFileStarted(int index);
+    }
+
+    private final int workers;
+    private final int perDevice;
+    private final MountTable mounts = MountTable.read();
+    private final List<Task> pending = new ArrayList<Task>();
+    private final Map<String, Integer> active = new HashMap<String, Integer>();
+    private Thread[] threads = null;
+    private CopyResult result = null;
+    private Listener listener = null;
+    private CopyProgress progress = null;
+    private CopyVerifier verifier = null;
+    private boolean ordered = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param workers   Number of worker threads.
+     * @param perDevice Maximum number of concurrent copies to one destination device.
+     */
+    public CopyScheduler(int workers, int perDevice) {
+        this.workers = Math.max(1, workers);
+        this.perDevice = Math.max(1, perDevice);
+    }
+
+    /**
+     * Digests and verifies every copy. Must be called before
+     * {@link #start(CopyResult, Listener, CopyProgress)}.
+     *
+     * @param verifier Verifier to check the copies with.
+     */
+    public void setVerifier(CopyVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Starts the copies in the order they were queued, rather than largest first. Must be
+     * called before {@link #start(CopyResult, Listener, CopyProgress)}.
+     *
+     * @param ordered <code>true</code> to keep the queued order.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Queues a copy. Must be called before
+     * {@link #start(CopyResult, Listener, CopyProgress)}.
+     *
+     * @param index  Index of the entry in the job's <code>CopyResult</code>.
+     * @param src    Source file.
+     * @param dst    Destination file.
+     * @param engine Engine to copy with.
+     */
+    public void add(int index, File src, File dst, CopyEngine engine) {
+        MountTable.Mount mount = mounts.find(dst.getAbsolutePath());
+        pending.add(new Task(index, src, dst, engine, src.length(),
+                (mount != null) ? mount.device : ""));
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty() && (threads == null);
+    }
+
+    /**
+     * Starts the workers and returns immediately.
+     *
+     * @param result   Receives the status of each entry.
+     * @param listener Told when each file starts, may be <code>null</code>.
+     * @param progress Receives the bytes written, may be <code>null</code>.
+     */
+    public synchronized void start(CopyResult result, Listener listener,
+            CopyProgress progress) {
+        this.result = result;
+        this.listener = listener;
+        this.progress = progress;
+
+        if (!ordered) {
+            Collections.sort(pending, new Comparator<Task>() {
+                public int compare(Task a, Task b) {
+                    return (a.size < b.size) ? 1 : ((a.size == b.size) ? 0 : -1);
+                }
+            });
+        }
+
+        threads = new Thread[Math.min(workers, pending.size())];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "CopyWorker-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Waits for all queued copies to finish.
+     *
+     * @throws InterruptedException If interrupted while waiting. The workers are stopped and
+     *          waited for, and every copy that didn't finish is marked as failed.
+     */
+    public void await() throws InterruptedException {
+        if (threads == null) {
+            return;
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            // the copies under way record how they ended before the result is read
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            throw e;
+        }
+    }
+
+    // fails whatever hasn't been started, so no worker picks up anything new
+    private synchronized void cancel() {
+        for (Task task : pending) {
+            result.setStatus(task.index, CopyResult.FAILED, "interrupted");
+        }
+        pending.clear();
+        notifyAll();
+    }
+
+    private void work() {
+        Task task;
+        try {
+            while ((task = next()) != null) {
+                try {
+                    copy(task);
+                } finally {
+                    finished(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped, cancel() has failed whatever is left
+        }
+    }
+
+    // hands out the first pending task whose device still has a free slot
+    private synchronized Task next() throws InterruptedException {
+        while (!pending.isEmpty()) {
+            for (Iterator<Task> it = pending.iterator(); it.hasNext();) {
+                Task task = it.next();
+                Integer count = active.get(task.device);
+                int running = (count != null) ? count.intValue() : 0;
+                if (running < perDevice) {
+                    it.remove();
+                    active.put(task.device, running + 1);
+                    return task;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void finished(Task task) {
+        active.put(task.device, active.get(task.device).intValue() - 1);
+        notifyAll();
+    }
+
+    private void copy(Task task) {
+        if (listener != null) {
+            listener.onFileStarted(task.index);
+        }
+        long start = System.currentTimeMillis();
+        String error = null;
+        try {
+            String digest = task.engine.copy(task.src, task.dst, progress, verifier != null);
+            if (verifier != null) {
+                error = verify(task, digest);
+                result.setDigest(task.index, digest);
+            }
+            if (error == null) {
+                // matching times let the next incremental run skip without digesting
+                task.dst.setLastModified(task.src.lastModified());
+                result.setStatus(task.index, CopyResult.COPIED, null);
+            } else {
+                task.dst.delete();
+                result.setStatus(task.index, CopyResult.FAILED, error);
+            }
+        } catch (IOException e) {
+            boolean interrupted = (e instanceof InterruptedIOException)
+                    || Thread.currentThread().isInterrupted();
+            // don't leave a truncated copy behind, unless a resume can carry on from it
+            if (!interrupted || !(task.engine instanceof ResumeCopyEngine)) {
+                task.dst.delete();
+            }
+            error = interrupted ? "interrupted: " + e.toString() : e.toString();
+            result.setStatus(task.index, CopyResult.FAILED, error);
+        }
+        Metrics.current().recordCopy(result.getName(task.index), task.size, start,
+                System.currentTimeMillis(), error);
+    }
+
+    private String verify(Task task, String digest) throws IOException {
+        // a short file is caught without reading anything back
+        long written = task.dst.length();
+        if (written != task.size) {
+            return CopyVerifier.FAILURE_PREFIX + ": wrote " + written + " of " + task.size
+                    + " bytes";
+        }
+        return verifier.verify(task.index, digest,
+                verifier.isReadback() ? FileDigests.digest(task.dst) : null);
+    }
+
+    private static class Task {
+        final int index;
+        final File src;
+        final File dst;
+        final CopyEngine engine;
+        final long size;
+        final String device;
+
+        Task(int index, File src, File dst, CopyEngine engine, long size, String device) {
+            this.index = index;
+            this.src = src;
+            this.dst = dst;
+            this.engine = engine;
+            this.size = size;
+            this.device = device;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiles a whole copy job into a single shell script, so it runs in one pass through the
+ * root shell. The script echoes a marker line before and after every file; those are
+ * parsed back into per-file progress and status while the script runs. With a parallelism
+ * above one, copies run as background jobs in waves of that size. With a
+ * {@link CopyVerifier}, each copy is digested on its way through and read back once
+ * written, and the two digests come back on a marker line of their own.
+ */
+public class CopyScript implements RootShell.OutputListener {
+    private static final String MARKER = "@@cmac";
+
+    /**
+     * Notified from the thread running the script.
+     */
+    public interface Listener {
+        void onFileStarted(int index);
+
+        void onFileFinished(int index);
+    }
+
+    private final StringBuilder script = new StringBuilder();
+    private final int parallelism;
+    private int entries = 0;
+    private CopyResult result = null;
+    private Listener listener = null;
+    private CopyVerifier verifier = null;
+    // per entry, for the copy metrics
+    private final Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+    private final Map<Integer, Long> startTimes = new HashMap<Integer, Long>();
+    // per entry, the digests of what was copied and what was read back
+    private final Map<Integer, String[]> sums = new HashMap<Integer, String[]>();
+
+    /**
+     * Class constructor.
+     *
+     * @param parallelism How many copies may run at once.
+     */
+    public CopyScript(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Verifies every copy added after this call. A copy that fails verification is left
+     * in place but marked as failed.
+     *
+     * @param verifier Verifier to check the copies with.
+     */
+    public void setVerifier(CopyVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Appends one copy to the script.
+     *
+     * @param index Index of the entry in the job's <code>CopyResult</code>.
+     * @param src   Source path.
+     * @param dst   Destination path.
+     */
+    public void add(int index, String src, String dst) {
+        // cp's error text travels on the end marker so it can't mix with other jobs
+        String copy;
+        if (verifier == null) {
+            copy = "echo \"" + MARKER + " begin " + index + "\"; "
+                    + "err=$(cp -f " + RootShell.quote(src) + " " + RootShell.quote(dst)
+                    + " 2>&1); "
+                    + "echo \"" + MARKER + " end " + index + " $? $err\"";
+        } else {
+            String errors = RootShell.quote(ShellCopyEngine.ERROR_DIR + "/cmac-" + index
+                    + ".err");
+            copy = "echo \"" + MARKER + " begin " + index + "\"; "
+                    + ShellCopyEngine.teeCommand(src, dst, errors) + "; "
+                    + "err=$(cat " + errors + "); rm -f " + errors + "; "
+                    + "rc=0; [ -n \"$err\" ] && rc=1; "
+                    + "c=; [ $rc = 0 ] && c=$(busybox md5sum " + RootShell.quote(dst) + "); "
+                    + "echo \"" + MARKER + " sum " + index + " ${s%% *} ${c%% *}\"; "
+                    + "echo \"" + MARKER + " end " + index + " $rc $err\"";
+        }
+
+        append(index, src, copy);
+    }
+
+    /**
+     * Appends a copy that an earlier job got partway through. If the first
+     * <code>offset</code> bytes of the destination match the source, only the rest is
+     * copied; otherwise the whole file is. Either way the finished file is read back and
+     * checked against the source, with or without a verifier.
+     *
+     * @param index  Index of the entry in the job's <code>CopyResult</code>.
+     * @param src    Source path.
+     * @param dst    Destination path.
+     * @param offset Bytes known to have been written, a multiple of
+     *                <code>CopyJournal.BLOCK_SIZE</code>.
+     */
+    public void addResumed(int index, String src, String dst, long offset) {
+        String errors = RootShell.quote(ShellCopyEngine.ERROR_DIR + "/cmac-" + index + ".err");
+        long blocks = offset / CopyJournal.BLOCK_SIZE;
+        String dd = "busybox dd if=" + RootShell.quote(src) + " of=" + RootShell.quote(dst)
+                + " bs=" + CopyJournal.BLOCK_SIZE;
+        String copy = "echo \"" + MARKER + " begin " + index + "\"; "
+                + "if [ \"$(busybox head -c " + offset + " " + RootShell.quote(src)
+                + " | busybox md5sum)\" = \"$(busybox head -c " + offset + " "
+                + RootShell.quote(dst) + " | busybox md5sum)\" ]; "
+                + "then " + dd + " skip=" + blocks + " seek=" + blocks + " conv=notrunc 2>"
+                + errors + "; "
+                + "else " + dd + " 2>" + errors + "; fi; rc=$?; "
+                // dd reports its record counts on stderr, only keep them when it failed
+                + "err=; [ $rc != 0 ] && err=$(cat " + errors + "); rm -f " + errors + "; "
+                + "s=; c=; [ $rc = 0 ] && s=$(busybox md5sum " + RootShell.quote(src)
+                + ") && c=$(busybox md5sum " + RootShell.quote(dst) + "); "
+                + "echo \"" + MARKER + " sum " + index + " ${s%% *} ${c%% *}\"; "
+                + "echo \"" + MARKER + " end " + index + " $rc $err\"";
+        append(index, src, copy);
+    }
+
+    private void append(int index, String src, String copy) {
+        sizes.put(index, new File(src).length());
+        if (parallelism == 1) {
+            script.append(copy + "\n");
+        } else {
+            if ((entries > 0) && (entries % parallelism == 0)) {
+                script.append("wait\n");
+            }
+            script.append("( " + copy + " ) &\n");
+        }
+        entries++;
+    }
+
+    public boolean isEmpty() {
+        return entries == 0;
+    }
+
+    /**
+     * Returns the full text of the script.
+     *
+     * @return Script to feed to the shell.
+     */
+    public String getScript() {
+        String copies = script.toString();
+        if (parallelism > 1) {
+            copies += "wait\n";
+        }
+        return copies;
+    }
+
+    /**
+     * Runs the script and records the outcome of every entry in <code>result</code>.
+     * Entries that are still pending when the script ends are marked as failed, so
+     * anything that should not be copied must be marked skipped beforehand.
+     *
+     * @param shell    Shell to run the script in.
+     * @param result   Receives the status of each entry.
+     * @param listener Told when each file starts and ends, may be <code>null</code>.
+     * @throws IOException If the shell died while running the script.
+     */
+    public void run(Shell shell, CopyResult result, Listener listener)
+            throws IOException {
+        this.result = result;
+        this.listener = listener;
+
+        try {
+            shell.run(getScript(), this);
+        } finally {
+            for (int i = 0; i < result.size(); i++) {
+                if (result.getStatus(i) == CopyResult.PENDING) {
+                    result.setStatus(i, CopyResult.FAILED, "not copied");
+                }
+            }
+        }
+    }
+
+    public void onLine(String line) {
+        if (!line.startsWith(MARKER + " ")) {
+            // continuation of a multi-line error message, already reported with its marker
+            return;
+        }
+
+        String[] fields = line.split(" ", 5);
+        if (fields[1].equals("begin")) {
+            int index = Integer.parseInt(fields[2]);
+            startTimes.put(index, System.currentTimeMillis());
+            if (listener != null) {
+                listener.onFileStarted(index);
+            }
+        } else if (fields[1].equals("sum")) {
+            int index = Integer.parseInt(fields[2]);
+            sums.put(index, new String[] {
+                    (fields.length > 3) ? fields[3] : null,
+                    (fields.length > 4) ? fields[4] : null });
+        } else if (fields[1].equals("end")) {
+            int index = Integer.parseInt(fields[2]);
+            if (fields[3].equals("0")) {
+                String error = null;
+                // a resumed copy is always checked, the verifier only adds expectations
+                CopyVerifier check = verifier;
+                if ((check == null) && sums.containsKey(index)) {
+                    check = new CopyVerifier(null);
+                }
+                if (check != null) {
+                    String[] sum = sums.get(index);
+                    String copied = (sum != null) ? sum[0] : null;
+                    // an empty read back means md5sum could not read the copy
+                    String written = ((sum != null) && (sum[1] != null)) ? sum[1] : "";
+                    error = check.verify(index, copied, written);
+                    result.setDigest(index, copied);
+                }
+                result.setStatus(index, (error == null) ? CopyResult.COPIED
+                        : CopyResult.FAILED, error);
+            } else {
+                result.setStatus(index, CopyResult.FAILED, ((fields.length > 4)
+                        && (fields[4].length() > 0)) ? fields[4] : "cp exited with " + fields[3]);
+            }
+            Long start = startTimes.get(index);
+            long now = System.currentTimeMillis();
+            Metrics.current().recordCopy(result.getName(index), sizes.get(index),
+                    (start != null) ? start : now, now, result.getError(index));
+            if (listener != null) {
+                listener.onFileFinished(index);
+            }
+        }
+    }
+}
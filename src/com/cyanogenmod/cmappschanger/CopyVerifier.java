@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+/**
+ * Decides whether a copy made it to its destination intact. Every engine digests the
+ * source as it streams through, so the source is never read twice; that digest is checked
+ * against the digest the job expects, if it has one, and against a digest read back from
+ * the destination. In-process copies are synced before they return, so reading them back
+ * is optional; shell copies always are, since nothing tells us their data hit the disk.
+ */
+public class CopyVerifier {
+    // start of every verification error, so failures can be told apart in traces
+    public static final String FAILURE_PREFIX = "Verification failed";
+
+    private final String[] expected;
+    private boolean readback = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param expected Digest every entry of the job should have, by entry index. May be
+     *                  <code>null</code>, as may any element, if it isn't known.
+     */
+    public CopyVerifier(String[] expected) {
+        this.expected = expected;
+    }
+
+    /**
+     * Makes in-process copies read their destination back as well.
+     *
+     * @param readback Whether to digest synced destinations again.
+     */
+    public void setReadback(boolean readback) {
+        this.readback = readback;
+    }
+
+    public boolean isReadback() {
+        return readback;
+    }
+
+    /**
+     * Returns the digest an entry is expected to have.
+     *
+     * @param index Index of the entry in the job.
+     * @return Hex digest, or <code>null</code> if it isn't known.
+     */
+    public String getExpected(int index) {
+        if ((expected == null) || (index >= expected.length)) {
+            return null;
+        }
+        return expected[index];
+    }
+
+    /**
+     * Checks one copy.
+     *
+     * @param index   Index of the entry in the job.
+     * @param copied  Digest of the bytes that went into the copy.
+     * @param written Digest read back from the destination, or <code>null</code> if it
+     *                 wasn't read back.
+     * @return <code>null</code> if the copy is good, otherwise the reason it isn't.
+     */
+    public String verify(int index, String copied, String written) {
+        if ((copied == null) || (copied.length() == 0)) {
+            return FAILURE_PREFIX + ": source was not digested";
+        }
+        String want = getExpected(index);
+        if ((want != null) && !want.equals(copied)) {
+            return FAILURE_PREFIX + ": source is " + copied + ", expected " + want;
+        }
+        if ((written != null) && !written.equals(copied)) {
+            return FAILURE_PREFIX + ": wrote " + written + ", copied " + copied;
+        }
+        return null;
+    }
+}
@@ -22,30 +22,40 @@
  * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
  * OTHER DEALINGS IN THE SOFTWARE.
  */
-
 package com.cyanogenmod.cmappschanger;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.List;
 
+import android.app.ProgressDialog;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Looper;
+import android.os.StatFs;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
 /**
+ * Runs a {@link CopyJob} in the background behind the progress dialog of a
+ * {@link TypeAppFresh}, and reports how it went once it is done.
+ *
  * @author Timothy Caraballo
  *
  */
 public class FileCopier extends AsyncTask<Object, Object, Void> {
-    // holds block that /system is located on
     private String toastText = "";
-    private String[] destinationPaths = null;
-    private String[] sourcePaths = null;
     private TypeAppFresh typeAppFresh = null;
-    private boolean success;
+    private final Progress progress = new Progress();
+    private final CopyJob job = new CopyJob(RootShell.getInstance(), progress);
+    private int error = CopyJob.OK;
+    // what the dialog shows, only touched on the UI thread
+    private String currentFile = "";
+    private String progressText = null;
+    private File traceDir = null;
+    private String operation = "copy";
 
     /**
      * Class constructor.
@@ -57,79 +67,86 @@ public class FileCopier extends AsyncTask<Object, Object, Void> {
         typeAppFresh = owner;
     }
 
+    /**
+     * Returns the job this copier runs, to be set up before <code>execute</code>.
+     *
+     * @return The job.
+     */
+    public CopyJob getJob() {
+        return job;
+    }
+
+    /**
+     * Records {@link Metrics} for this job and writes them as a JSON trace once it is
+     * done. Must be called before <code>execute</code>.
+     *
+     * @param dir       Trace directory.
+     * @param operation Name of the job in the trace.
+     */
+    public void setTrace(File dir, String operation) {
+        traceDir = dir;
+        this.operation = operation;
+    }
+
     @Override
     // params: String[] source, String[] destination, toastText
     protected Void doInBackground(Object... params) {
-        sourcePaths = (String[])params[0];
-        destinationPaths = (String[])params[1];
         toastText = (String)params[2];
 
         Looper.prepare();
-        String cmd = null;
-        boolean needReboot = false;
-        boolean remountRequired = destinationPaths[0].indexOf("/system/") == 0;
-
-        Process su = null;
-        success = false;
-
-        if (remountRequired && !remount("rw")) {
-        	return null;
-        }
 
+        Metrics metrics = Metrics.begin(operation);
+        metrics.set("model", Build.MODEL);
+        metrics.set("fingerprint", Build.FINGERPRINT);
+        metrics.set("workers", Integer.toString(job.getParallelism()));
         try {
-            for (int i = 0; i < sourcePaths.length; i++) {
-                if (sourcePaths[i].equals(destinationPaths[i])) {
-                    continue;
-                }
-                publishProgress(sourcePaths[i]);
-                su = getSu();
-                cmd = "cp -f \"" + sourcePaths[i] + "\" \"" + destinationPaths[i] + "\"";
-                Log.i(TypeAppFresh.TAG,"Executing \"" + cmd + "\"");
-                cmd += "\nexit\n";
-
-                su.getOutputStream().write(cmd.getBytes());
-
-                if (su.waitFor() != 0) {
-                    BufferedReader br = new BufferedReader(
-                            new InputStreamReader(su.getErrorStream()), 200);
-                    String line;
-                    while((line = br.readLine()) != null) {
-                        Log.e(TypeAppFresh.TAG,"Error copying: \"" + line + "\"");
-                    }
-
-                    success = false;
-                    // even if there was an error, we want to continue to remount the system
-                } else {
-                    // If we've overwritten any of the core apps, we need to reboot
-                    if (destinationPaths[i].indexOf("/system/") == 0) {
-                        needReboot = true;
-                    }
-
-                    success = true;
-                }
-                // clear up references, since we're done
-                su.destroy();
+            error = job.run((String[])params[0], (String[])params[1]);
+        } finally {
+            if (traceDir != null) {
+                writeTrace(metrics);
             }
+        }
+        if (error != CopyJob.OK) {
+            publishProgress(getErrorDialog(error));
+        } else if (job.isRebootNeeded()) {
+            publishProgress(TypeAppFresh.DIALOG_NEED_REBOOT);
+        }
+        return null;
+    }
 
-            if (needReboot) {
-                publishProgress(TypeAppFresh.DIALOG_NEED_REBOOT);
-            }
+    private void writeTrace(Metrics metrics) {
+        job.recordMetrics(metrics);
+        metrics.finish();
+        try {
+            File trace = metrics.write(traceDir);
+            Log.i(TypeAppFresh.TAG, "Trace written to " + trace);
         } catch (IOException e) {
-            Log.e(TypeAppFresh.TAG,e.toString());
-            publishProgress(TypeAppFresh.DIALOG_NEED_ROOT);
-        } catch (InterruptedException e) {
-            Log.e(TypeAppFresh.TAG,e.toString());
-            // hmm...how should I yell about this to the user?
+            Log.e(TypeAppFresh.TAG, "Could not write trace: " + e.toString());
         }
-        return null;
     }
 
+    private static int getErrorDialog(int error) {
+        switch (error) {
+        case CopyJob.ERROR_REMOUNT:
+            return TypeAppFresh.DIALOG_REMOUNT_FAILED;
+        case CopyJob.ERROR_ARCHIVE:
+            return TypeAppFresh.DIALOG_ARCHIVE_FAILED;
+        case CopyJob.ERROR_STORE:
+            return TypeAppFresh.DIALOG_STORE_FAILED;
+        default:
+            return TypeAppFresh.DIALOG_NEED_ROOT;
+        }
+    }
 
     @Override
     protected void onProgressUpdate(Object... message) {
         if (message[0] instanceof String) {
             // a String will just update the ProgressDialog
-            typeAppFresh.progressDialog.setMessage((String)message[0]);
+            currentFile = (String)message[0];
+            showMessage();
+        } else if (message[0] instanceof CopyProgress) {
+            showBytes((CopyProgress)message[0]);
+            showMessage();
         } else {
             // otherwise we're calling another Dialog
             typeAppFresh.showDialog(((Number)message[0]).intValue());
@@ -145,11 +162,85 @@ public class FileCopier extends AsyncTask<Object, Object, Void> {
     protected void onPostExecute(Void result) {
         typeAppFresh.progressDialog.dismiss();
 
-        if (success) {
+        if (job.isBackup()) {
+            typeAppFresh.loadBackupManifest();
+        }
+
+        CopyResult copyResult = job.getResult();
+        if ((copyResult == null) || (error != CopyJob.OK)) {
+            return;
+        }
+
+        List<String> failed = copyResult.getFailedNames();
+        PreflightValidator.Report preflightReport = job.getPreflightReport();
+        SpacePlanner.Plan spacePlan = job.getSpacePlan();
+        if (((preflightReport != null) && !preflightReport.isPassed())
+                || ((spacePlan != null) && !spacePlan.isPassed())) {
+            // the plan was turned down before anything was copied
+            StringBuilder problems = new StringBuilder();
+            for (int i = 0; i < copyResult.size(); i++) {
+                String problem = copyResult.getError(i);
+                if ((problem != null) && (problems.indexOf(problem) < 0)) {
+                    problems.append("\n").append(problem);
+                }
+            }
+            Toast.makeText(typeAppFresh, typeAppFresh.getString(R.string.toast_preflight_failed,
+                    problems.toString()), Toast.LENGTH_LONG).show();
+        } else if (!failed.isEmpty()) {
+            StringBuilder names = new StringBuilder();
+            for (String name : failed) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(name);
+            }
+            Toast.makeText(typeAppFresh, typeAppFresh.getString(R.string.toast_copy_failed,
+                    names.toString()), Toast.LENGTH_LONG).show();
+        } else if (job.getUnchanged() > 0) {
+            Toast.makeText(typeAppFresh, typeAppFresh.getString(R.string.toast_unchanged,
+                    toastText, job.getUnchanged()), Toast.LENGTH_SHORT).show();
+        } else if (job.isRestarted()) {
+            Toast.makeText(typeAppFresh, typeAppFresh.getString(R.string.toast_restarted,
+                    toastText), Toast.LENGTH_SHORT).show();
+        } else if (copyResult.count(CopyResult.COPIED) > 0) {
             Toast.makeText(typeAppFresh, toastText, Toast.LENGTH_SHORT).show();
         }
     }
 
+    private void showMessage() {
+        String text = currentFile;
+        if (progressText != null) {
+            text += "\n" + progressText;
+        }
+        if (job.getUnchanged() > 0) {
+            text = typeAppFresh.getString(R.string.diag_unchanged, text, job.getUnchanged());
+        }
+        typeAppFresh.progressDialog.setMessage(text);
+    }
+
+    private void showBytes(CopyProgress copied) {
+        long total = copied.getTotal();
+        if (total <= 0) {
+            return;
+        }
+        // the bar counts kilobytes so that large jobs stay within an int
+        ProgressDialog dialog = typeAppFresh.progressDialog;
+        dialog.setIndeterminate(false);
+        dialog.setMax((int)(total / 1024));
+        dialog.setProgress((int)(copied.getDone() / 1024));
+
+        long rate = copied.getRate();
+        long eta = copied.getEtaMillis();
+        if ((rate < 0) || (eta < 0)) {
+            return;
+        }
+        progressText = typeAppFresh.getString(R.string.diag_progress,
+                Formatter.formatFileSize(typeAppFresh, copied.getDone()),
+                Formatter.formatFileSize(typeAppFresh, total),
+                Formatter.formatFileSize(typeAppFresh, rate),
+                DateUtils.formatElapsedTime(eta / 1000));
+    }
+
     /**
      * Sets a new TypeAppFresh as this threads owner. This is important, since we
      * need a reference to the new Activity when the screen rotates.
@@ -161,60 +252,51 @@ public class FileCopier extends AsyncTask<Object, Object, Void> {
     }
 
     /**
-     * Remounts /system
-     *
-     * @throws InterruptedException If our <code>su</code> process has a problem.
-     * @throws IOException If our <code>su</code> process has a problem.
-     * @return <code>boolean</code> of whether it succeeded.
+     * Forwards the job's progress to the dialog and its log lines to the system log.
      */
-    public boolean remount(String accessmode) {
-        String cmd = "busybox mount -o " + accessmode + ",remount /system\nexit\n";
-        
-        Log.i(TypeAppFresh.TAG,"Remounting /system");
+    private class Progress implements CopyJob.Listener {
+        public void onFileStarted(String path) {
+            publishProgress(path);
+        }
 
-        try {
-            Process su = getSu();
-            su.getOutputStream().write(cmd.getBytes());
-
-            if (su.waitFor() != 0) {
-                BufferedReader br
-                        = new BufferedReader(new InputStreamReader(su.getErrorStream()), 200);
-                String line;
-                while((line = br.readLine()) != null) {
-                    Log.e(TypeAppFresh.TAG,"Error remounting: \"" + line + "\"");
-                }
-                Log.e(TypeAppFresh.TAG, "Could not remount, returning");
-                publishProgress(TypeAppFresh.DIALOG_REMOUNT_FAILED);
-                return false;
-            }
-        } catch (IOException e) {
-            Log.e(TypeAppFresh.TAG, e.toString());
-            publishProgress(TypeAppFresh.DIALOG_REMOUNT_FAILED);
-            return false;
-        } catch (InterruptedException e) {
-            Log.e(TypeAppFresh.TAG, e.toString());
-            publishProgress(TypeAppFresh.DIALOG_REMOUNT_FAILED);
-            return false;
+        public void onProgress(CopyProgress copied) {
+            publishProgress(copied);
         }
 
-        Log.i(TypeAppFresh.TAG,"Remounted /system");
-        return true;
-    }
+        public void onStage(int stage) {
+            // typeAppFresh can be swapped on rotation, but any instance has the strings
+            publishProgress(typeAppFresh.getString((stage == CopyJob.STAGE_PREFLIGHT)
+                    ? R.string.diag_preflight : R.string.diag_restarting));
+        }
 
+        public void onLog(boolean error, String message) {
+            if (error) {
+                Log.e(TypeAppFresh.TAG, message);
+            } else {
+                Log.i(TypeAppFresh.TAG, message);
+            }
+        }
+    }
 
     /**
-     * Finds the proper <code>su</code> binary and returns its <code>Process</code>.
-     *
-     * @throws IOException If we have a problem reading <code>stdout</code>.
-     * @return Superuser <code>Process</code>.
+     * Looks up free space with <code>statfs</code>.
      */
-    public static Process getSu() throws IOException {
-        String suLocation = "/system/bin/su";
+    static class StatFsProbe implements SpacePlanner.SpaceProbe {
+        public long getAvailable(String path) throws IOException {
+            StatFs stat = statFs(path);
+            return (long)stat.getAvailableBlocks() * stat.getBlockSize();
+        }
 
-        if (!(new File(suLocation)).exists()) {
-            suLocation = "/system/xbin/su";
+        public long getBlockSize(String path) throws IOException {
+            return statFs(path).getBlockSize();
         }
 
-        return Runtime.getRuntime().exec(suLocation);
+        private static StatFs statFs(String path) throws IOException {
+            try {
+                return new StatFs(path);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("statfs failed on " + path);
+            }
+        }
     }
 }
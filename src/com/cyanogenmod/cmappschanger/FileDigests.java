@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streaming content digests of files. MD5 is used throughout, since busybox
+ * <code>md5sum</code> can produce the same digests on the device side.
+ */
+public class FileDigests {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private FileDigests() {
+    }
+
+    /**
+     * Returns a new MD5 digest.
+     *
+     * @return A fresh <code>MessageDigest</code>.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the digest of a file, reading it once in fixed-size chunks.
+     *
+     * @param file File to digest.
+     * @throws IOException If the file could not be read.
+     * @return Lower-case hex digest.
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Formats raw digest bytes as lower-case hex.
+     *
+     * @param bytes Digest bytes.
+     * @return Hex string.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Checks whether <code>dst</code> already holds the same bytes as <code>src</code>.
+     * Sizes are compared first, then modification times, and only when those cannot
+     * decide is the content of both files digested.
+     *
+     * @param src Source file.
+     * @param dst Destination file.
+     * @return <code>true</code> if copying <code>src</code> to <code>dst</code> would
+     *          change nothing.
+     */
+    public static boolean isUnchanged(File src, File dst) {
+        if (!dst.exists() || !src.canRead() || !dst.canRead()) {
+            return false;
+        }
+        if (src.length() != dst.length()) {
+            return false;
+        }
+        // FAT only stores modification times to two seconds
+        if (Math.abs(src.lastModified() - dst.lastModified()) < 2000) {
+            return true;
+        }
+
+        try {
+            return digest(src).equals(digest(dst));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+/**
+ * Does the startup disk work off the UI thread: lists /system/app through the
+ * {@link AppInventory} cache, makes sure the backup directory exists and reads the backup
+ * manifest. The activity shows a placeholder, or the cached list, until this is done.
+ * The listing is handed over as soon as it is ready, and the APK metadata from the
+ * {@link MetadataIndex} follows once it has been looked up.
+ */
+public class InventoryLoader extends AsyncTask<Void, AppInventory, AppInventory> {
+    private TypeAppFresh typeAppFresh = null;
+    private final File indexFile;
+    private MetadataIndex index = null;
+    private BackupManifest manifest = null;
+    private boolean mkdirFailed = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param owner The activity to hand the results to.
+     */
+    public InventoryLoader(TypeAppFresh owner) {
+        typeAppFresh = owner;
+        indexFile = new File(owner.getCacheDir(), MetadataIndex.FILE_NAME);
+    }
+
+    /**
+     * Sets a new TypeAppFresh as this task's owner, for when the screen rotates.
+     *
+     * @param owner The new activity.
+     */
+    public void setActivity(TypeAppFresh owner) {
+        typeAppFresh = owner;
+    }
+
+    @Override
+    protected AppInventory doInBackground(Void... params) {
+        AppInventory inventory = AppInventory.get(new File(AppInventory.SYSTEM_APP_DIR));
+
+        File sdApps = new File(TypeAppFresh.extStorage + "/SystemApps");
+        if (!sdApps.exists()) {
+            try {
+                sdApps.mkdir();
+            } catch (Exception e) {
+                Log.e(TypeAppFresh.TAG,e.toString());
+                mkdirFailed = true;
+            }
+        }
+
+        manifest = typeAppFresh.readBackupManifest();
+        publishProgress(inventory);
+
+        index = MetadataIndex.open(indexFile);
+        if (inventory.getMetadata() == null) {
+            String[] paths = inventory.getSystemPaths();
+            ApkMetadata[] metadata = new ApkMetadata[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                metadata[i] = index.get(new File(paths[i]));
+            }
+            inventory.setMetadata(metadata);
+        }
+        try {
+            index.save();
+        } catch (IOException e) {
+            Log.e(TypeAppFresh.TAG, "Could not save metadata index: " + e.toString());
+        }
+        return inventory;
+    }
+
+    @Override
+    protected void onProgressUpdate(AppInventory... inventory) {
+        typeAppFresh.onInventoryLoaded(inventory[0], manifest, mkdirFailed);
+    }
+
+    @Override
+    protected void onPostExecute(AppInventory inventory) {
+        typeAppFresh.onMetadataLoaded(inventory, index);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last lines of some output, so a command that prints without end can't use up
+ * memory. Once full, every new line pushes out the oldest one.
+ */
+public class LineRing {
+    private final String[] lines;
+    private int start = 0;
+    private int count = 0;
+    private int dropped = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param capacity Number of lines to keep.
+     */
+    public LineRing(int capacity) {
+        lines = new String[capacity];
+    }
+
+    public synchronized void add(String line) {
+        if (count < lines.length) {
+            lines[(start + count) % lines.length] = line;
+            count++;
+        } else {
+            lines[start] = line;
+            start = (start + 1) % lines.length;
+            dropped++;
+        }
+    }
+
+    /**
+     * Returns the lines kept.
+     *
+     * @return Copy of the lines, oldest first.
+     */
+    public synchronized List<String> toList() {
+        List<String> list = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(lines[(start + i) % lines.length]);
+        }
+        return list;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the newest line.
+     *
+     * @return The line last added, or <code>null</code> if there is none.
+     */
+    public synchronized String getLast() {
+        return (count > 0) ? lines[(start + count - 1) % lines.length] : null;
+    }
+
+    /**
+     * Returns how many lines were pushed out.
+     *
+     * @return Number of lines dropped since this ring was created.
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies by memory-mapping the source a window at a time and writing each window out.
+ * Used for large APKs, where page-cache backed reads beat copying through the heap.
+ */
+public class MappedCopyEngine implements CopyEngine {
+    // keep each mapping small enough for the address space of older devices
+    private static final long WINDOW_SIZE = 8 * 1024 * 1024;
+
+    public String copy(File src, File dst, CopyProgress progress, boolean digest)
+            throws IOException {
+        MessageDigest md5 = digest ? FileDigests.newDigest() : null;
+        FileChannel in = new FileInputStream(src).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(dst).getChannel();
+            try {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long length = Math.min(WINDOW_SIZE, size - position);
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY,
+                            position, length);
+                    if (md5 != null) {
+                        // the mapping is already paged in for the write, digest it there
+                        md5.update(window.duplicate());
+                    }
+                    while (window.hasRemaining()) {
+                        int count = out.write(window);
+                        if (progress != null) {
+                            progress.add(count);
+                        }
+                    }
+                    position += length;
+                }
+                if (md5 != null) {
+                    out.force(true);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return (md5 != null) ? FileDigests.toHex(md5.digest()) : null;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of {@link ApkMetadata}, keyed by path and checked against the file's
+ * size and modification time, so an APK's manifest is only read once until it changes.
+ * APKs that could not be read are remembered too, so they aren't retried every launch.
+ */
+public class MetadataIndex {
+    public static final String FILE_NAME = "apk-metadata";
+    private static final String MAGIC = "cmac-metadata 1";
+
+    private static MetadataIndex instance = null;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean dirty = false;
+
+    private MetadataIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the index stored in <code>file</code>, reading it only the first time.
+     * Call this off the UI thread.
+     *
+     * @param file Index file.
+     * @return The index, empty if the file is missing or unreadable.
+     */
+    public static synchronized MetadataIndex open(File file) {
+        if ((instance == null) || !instance.file.equals(file)) {
+            instance = new MetadataIndex(file);
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the metadata of an APK, from the index if its size and time still match,
+     * otherwise by reading its manifest.
+     *
+     * @param apk The APK.
+     * @return The metadata, or <code>null</code> if it isn't a readable APK.
+     */
+    public synchronized ApkMetadata get(File apk) {
+        long size = apk.length();
+        long mtime = apk.lastModified();
+        Entry entry = entries.get(apk.getPath());
+        if ((entry != null) && (entry.size == size) && (entry.mtime == mtime)) {
+            return entry.metadata;
+        }
+
+        ApkMetadata metadata;
+        try {
+            metadata = ApkMetadata.read(apk);
+        } catch (IOException e) {
+            metadata = null;
+        }
+        entries.put(apk.getPath(), new Entry(size, mtime, metadata));
+        dirty = true;
+        return metadata;
+    }
+
+    /**
+     * Writes the index out if anything was added since it was read.
+     *
+     * @throws IOException If it could not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            out.write(MAGIC + "\n");
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                ApkMetadata metadata = entry.metadata;
+                out.write("apk\t" + item.getKey() + "\t" + entry.size + "\t" + entry.mtime);
+                if (metadata != null) {
+                    out.write("\t" + metadata.packageName + "\t" + metadata.versionCode + "\t"
+                            + clean(metadata.versionName));
+                }
+                out.write("\n");
+            }
+            out.write("end\t" + entries.size() + "\n");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"), 8192);
+            try {
+                if (!MAGIC.equals(in.readLine())) {
+                    return;
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields[0].equals("end")) {
+                        // a cut-off index is thrown away rather than half trusted
+                        if (Integer.parseInt(fields[1]) == loaded.size()) {
+                            entries.putAll(loaded);
+                        }
+                        return;
+                    }
+                    ApkMetadata metadata = null;
+                    if (fields.length >= 7) {
+                        metadata = new ApkMetadata(fields[4], Integer.parseInt(fields[5]),
+                                (fields[6].length() > 0) ? fields[6] : null);
+                    }
+                    loaded.put(fields[1], new Entry(Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), metadata));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // start over with an empty index
+        } catch (RuntimeException e) {
+            // malformed line
+        }
+    }
+
+    private static String clean(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final ApkMetadata metadata;
+
+        Entry(long size, long mtime, ApkMetadata metadata) {
+            this.size = size;
+            this.mtime = mtime;
+            this.metadata = metadata;
+        }
+    }
+}
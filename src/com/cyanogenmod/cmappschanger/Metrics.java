@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters, latency histograms and timed spans for one operation, such as a backup or a
+ * reboot. The shell, the remount manager and the copiers record into the
+ * {@link #current()} operation, and the finished operation is written out as a JSON trace
+ * so runs can be compared between devices without a debugger attached.
+ */
+public class Metrics {
+    /** Directory next to the backups that holds the traces. */
+    public static final String TRACE_DIR = "traces";
+    // older traces are deleted when a new one is written
+    private static final int KEEP_TRACES = 20;
+    // a restore of every app stays well below this
+    private static final int MAX_SPANS = 512;
+
+    private static Metrics current = null;
+
+    private final String operation;
+    private final long started;
+    private long finished = 0;
+    private final Map<String, String> attributes = new TreeMap<String, String>();
+    private final Map<String, Long> counters = new TreeMap<String, Long>();
+    private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+    private final List<Span> spans = new ArrayList<Span>();
+    private int droppedSpans = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param operation Name of the operation, used in the trace file name.
+     */
+    public Metrics(String operation) {
+        this.operation = operation;
+        started = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts recording a new operation and makes it the current one.
+     *
+     * @param operation Name of the operation.
+     * @return The new <code>Metrics</code>.
+     */
+    public static synchronized Metrics begin(String operation) {
+        current = new Metrics(operation);
+        return current;
+    }
+
+    /**
+     * Returns the operation being recorded. Anything recorded outside an operation goes
+     * into an unnamed one that is never written out.
+     *
+     * @return The current <code>Metrics</code>.
+     */
+    public static synchronized Metrics current() {
+        if (current == null) {
+            current = new Metrics("idle");
+        }
+        return current;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Sets a descriptive attribute, such as the device model.
+     *
+     * @param key   Attribute name.
+     * @param value Attribute value.
+     */
+    public synchronized void set(String key, String value) {
+        attributes.put(key, value);
+    }
+
+    /**
+     * Adds one to a counter.
+     *
+     * @param name Counter name.
+     */
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param name  Counter name.
+     * @param delta Amount to add.
+     */
+    public synchronized void count(String name, long delta) {
+        Long value = counters.get(name);
+        counters.put(name, (value == null) ? delta : value + delta);
+    }
+
+    /**
+     * Adds a value to a histogram.
+     *
+     * @param name  Histogram name, including its unit.
+     * @param value Value to add.
+     */
+    public synchronized void record(String name, long value) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        histogram.add(value);
+    }
+
+    /**
+     * Records a timed span, and its duration in the <code>name.ms</code> histogram.
+     *
+     * @param name   Span name.
+     * @param start  Start time in milliseconds.
+     * @param end    End time in milliseconds.
+     * @param detail What the span was about, may be <code>null</code>.
+     */
+    public synchronized void span(String name, long start, long end, String detail) {
+        record(name + ".ms", end - start);
+        if (spans.size() < MAX_SPANS) {
+            spans.add(new Span(name, start, end, detail));
+        } else {
+            droppedSpans++;
+        }
+    }
+
+    /**
+     * Records one file copy: its time, its throughput and, if it failed, why.
+     *
+     * @param name  Name of the file.
+     * @param bytes Size of the file.
+     * @param start Start time in milliseconds.
+     * @param end   End time in milliseconds.
+     * @param error Error message, or <code>null</code> if it was copied.
+     */
+    public synchronized void recordCopy(String name, long bytes, long start, long end,
+            String error) {
+        span("copy.file", start, end, name);
+        if (error != null) {
+            count("copy.failed." + failureCause(error));
+            return;
+        }
+        count("copy.files");
+        count("copy.bytes", bytes);
+        if (end > start) {
+            record("copy.kbps", bytes * 1000 / 1024 / (end - start));
+        }
+    }
+
+    /**
+     * Marks the operation as finished.
+     */
+    public synchronized void finish() {
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * Sorts an error message into a short cause name for failure counters.
+     *
+     * @param message Error message from an exception or from <code>cp</code>.
+     * @return Cause name.
+     */
+    public static String failureCause(String message) {
+        if (message == null) {
+            return "other";
+        } else if (message.indexOf("No space left") >= 0) {
+            return "no_space";
+        } else if (message.indexOf("Read-only file system") >= 0) {
+            return "read_only";
+        } else if (message.indexOf("Permission denied") >= 0) {
+            return "permission";
+        } else if (message.indexOf("No such file") >= 0) {
+            return "not_found";
+        } else if (message.indexOf("Shell exited") >= 0) {
+            return "shell_died";
+        } else if (message.startsWith(CopyVerifier.FAILURE_PREFIX)) {
+            return "verification";
+        }
+        return "other";
+    }
+
+    /**
+     * Writes the trace into <code>dir</code> and deletes the oldest traces beyond the
+     * ones kept.
+     *
+     * @param dir Trace directory.
+     * @throws IOException If the trace could not be written.
+     * @return The trace file.
+     */
+    public File write(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = new File(dir, operation + "-" + started + ".json");
+        File tmp = new File(dir, file.getName() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(toJson());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+
+        String[] names = dir.list();
+        if ((names != null) && (names.length > KEEP_TRACES)) {
+            // names start with the operation, so go by file time instead
+            File[] traces = dir.listFiles();
+            Arrays.sort(traces, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long x = a.lastModified();
+                    long y = b.lastModified();
+                    return (x < y) ? -1 : ((x == y) ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < traces.length - KEEP_TRACES; i++) {
+                traces[i].delete();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Renders the operation as JSON.
+     *
+     * @return JSON text.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"operation\": ").append(quote(operation));
+        json.append(",\n  \"started\": ").append(started);
+        json.append(",\n  \"finished\": ").append(finished);
+
+        json.append(",\n  \"attributes\": {");
+        String separator = "";
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            json.append(separator).append("\n    ").append(quote(entry.getKey()))
+                    .append(": ").append(quote(entry.getValue()));
+            separator = ",";
+        }
+        json.append("\n  },\n  \"counters\": {");
+        separator = "";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            json.append(separator).append("\n    ").append(quote(entry.getKey()))
+                    .append(": ").append(entry.getValue());
+            separator = ",";
+        }
+        json.append("\n  },\n  \"histograms\": {");
+        separator = "";
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            json.append(separator).append("\n    ").append(quote(entry.getKey()))
+                    .append(": ");
+            entry.getValue().appendJson(json);
+            separator = ",";
+        }
+        json.append("\n  },\n  \"droppedSpans\": ").append(droppedSpans);
+        json.append(",\n  \"spans\": [");
+        separator = "";
+        for (Span span : spans) {
+            json.append(separator).append("\n    {\"name\": ").append(quote(span.name))
+                    .append(", \"start\": ").append(span.start)
+                    .append(", \"ms\": ").append(span.end - span.start);
+            if (span.detail != null) {
+                json.append(", \"detail\": ").append(quote(span.detail));
+            }
+            json.append("}");
+            separator = ",";
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                quoted.append('\\').append(c);
+            } else if (c == '\n') {
+                quoted.append("\\n");
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Count, sum, range and power-of-two buckets of a set of values.
+     */
+    public static class Histogram {
+        // bucket i holds values below 2^i, the last one everything above
+        private final long[] buckets = new long[32];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        void add(long value) {
+            int bucket = 0;
+            while ((bucket < buckets.length - 1) && (value >= (1L << bucket))) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{\"count\": ").append(count).append(", \"sum\": ").append(sum)
+                    .append(", \"min\": ").append(min).append(", \"max\": ").append(max)
+                    .append(", \"buckets\": {");
+            String separator = "";
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] == 0) {
+                    continue;
+                }
+                // keyed by the bucket's upper bound, the last one has none
+                json.append(separator).append((i < buckets.length - 1)
+                        ? "\"<" + (1L << i) + "\": " : "\">=" + (1L << (i - 1)) + "\": ")
+                        .append(buckets[i]);
+                separator = ", ";
+            }
+            json.append("}}");
+        }
+    }
+
+    private static class Span {
+        final String name;
+        final long start;
+        final long end;
+        final String detail;
+
+        Span(String name, long start, long end, String detail) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of <code>/proc/mounts</code>.
+ */
+public class MountTable {
+    private static final File PROC_MOUNTS = new File("/proc/mounts");
+
+    private final List<Mount> mounts;
+
+    private MountTable(List<Mount> mounts) {
+        this.mounts = mounts;
+    }
+
+    /**
+     * Reads the current mount table. If <code>/proc/mounts</code> can't be read the table
+     * is empty and every lookup falls back to <code>null</code>.
+     *
+     * @return The current <code>MountTable</code>.
+     */
+    public static MountTable read() {
+        List<Mount> mounts = new ArrayList<Mount>();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(PROC_MOUNTS), 4096);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length >= 4) {
+                        mounts.add(new Mount(unescape(fields[0]), unescape(fields[1]),
+                                fields[2], fields[3]));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // no mount information, callers treat everything as one device
+        }
+        return new MountTable(mounts);
+    }
+
+    /**
+     * Finds the mount a path lives on, by longest matching mount point.
+     *
+     * @param path Absolute path.
+     * @return The <code>Mount</code>, or <code>null</code> if none matches.
+     */
+    public Mount find(String path) {
+        Mount best = null;
+        for (Mount mount : mounts) {
+            String point = mount.mountPoint;
+            boolean matches = path.equals(point) || point.equals("/")
+                    || path.startsWith(point + "/");
+            if (matches && ((best == null) || (point.length() > best.mountPoint.length()))) {
+                best = mount;
+            }
+        }
+        return best;
+    }
+
+    // /proc/mounts escapes spaces and a few other characters as octal
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder out = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if ((c == '\\') && (i + 3 < field.length())) {
+                try {
+                    out.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                    i += 3;
+                    continue;
+                } catch (NumberFormatException e) {
+                    // not an escape, keep the backslash
+                }
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    /**
+     * One line of <code>/proc/mounts</code>.
+     */
+    public static class Mount {
+        public final String device;
+        public final String mountPoint;
+        public final String type;
+        public final String options;
+
+        Mount(String device, String mountPoint, String type, String options) {
+            this.device = device;
+            this.mountPoint = mountPoint;
+            this.type = type;
+            this.options = options;
+        }
+
+        public boolean isReadOnly() {
+            return options.equals("ro") || options.startsWith("ro,");
+        }
+    }
+}
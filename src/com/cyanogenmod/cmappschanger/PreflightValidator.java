@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks a copy plan before anything is written. Every source must be a zip file with an
+ * intact central directory and a readable manifest, of the package it is meant to
+ * replace. The APKs are checked on a pool of threads, so a bad plan is turned down in
+ * about the time it takes to open its largest APK. Whether the plan fits on its devices
+ * is left to {@link SpacePlanner}.
+ */
+public class PreflightValidator {
+    private final int threads;
+
+    /**
+     * Class constructor.
+     *
+     * @param threads Number of threads to check with.
+     */
+    public PreflightValidator(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Checks every entry of a plan.
+     *
+     * @param sources      Source APK of every entry, <code>null</code> for entries that
+     *                      won't be copied.
+     * @param destinations Destination path of every entry.
+     * @param packages     Package every source should be, by entry. May be
+     *                      <code>null</code>, as may any element, if it isn't known.
+     * @throws InterruptedException If interrupted while the checks were running.
+     * @return The problems found.
+     */
+    public Report validate(String[] sources, final String[] destinations, String[] packages)
+            throws InterruptedException {
+        final Report report = new Report(sources.length);
+        List<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == null) {
+                continue;
+            }
+            final int index = i;
+            final File src = new File(sources[i]);
+            final String expected = (packages != null) ? packages[i] : null;
+            checks.add(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        ApkMetadata metadata = readApk(src);
+                        report.setMetadata(index, metadata);
+                        if ((expected != null) && !expected.equals(metadata.packageName)) {
+                            report.setProblem(index, src.getName() + " is "
+                                    + metadata.packageName + ", not " + expected);
+                        }
+                    } catch (IOException e) {
+                        report.setProblem(index, e.getMessage());
+                    }
+                    return null;
+                }
+            });
+        }
+
+        if (checks.isEmpty()) {
+            return report;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, checks.size()));
+        try {
+            pool.invokeAll(checks);
+        } finally {
+            pool.shutdownNow();
+        }
+        return report;
+    }
+
+    /**
+     * Checks that a file is an intact APK and reads its manifest.
+     *
+     * @param apk APK to check.
+     * @throws IOException Saying what is wrong with it.
+     * @return Its metadata.
+     */
+    static ApkMetadata readApk(File apk) throws IOException {
+        if (!apk.isFile() || !apk.canRead()) {
+            throw new IOException(apk.getName() + " can't be read");
+        }
+        // opening it reads the whole central directory
+        try {
+            new ZipFile(apk).close();
+        } catch (IOException e) {
+            throw new IOException(apk.getName() + " is not a valid zip file: "
+                    + e.getMessage());
+        }
+        try {
+            return ApkMetadata.read(apk);
+        } catch (IOException e) {
+            throw new IOException(apk.getName() + " has no readable manifest: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * The outcome of a check, with at most one problem per entry.
+     */
+    public static class Report {
+        private final String[] problems;
+        private final ApkMetadata[] metadata;
+
+        Report(int size) {
+            problems = new String[size];
+            metadata = new ApkMetadata[size];
+        }
+
+        synchronized void setMetadata(int index, ApkMetadata apk) {
+            metadata[index] = apk;
+        }
+
+        /**
+         * Returns the manifest read from the source of one entry.
+         *
+         * @param index Index of the entry in the plan.
+         * @return The metadata, or <code>null</code> if it couldn't be read.
+         */
+        public synchronized ApkMetadata getMetadata(int index) {
+            return metadata[index];
+        }
+
+        synchronized void setProblem(int index, String problem) {
+            // the first problem found is enough to turn the entry down
+            if ((problem != null) && (problems[index] == null)) {
+                problems[index] = problem;
+            }
+        }
+
+        /**
+         * Returns what is wrong with one entry.
+         *
+         * @param index Index of the entry in the plan.
+         * @return The problem, or <code>null</code> if the entry passed.
+         */
+        public synchronized String getProblem(int index) {
+            return problems[index];
+        }
+
+        /**
+         * Returns whether every entry passed.
+         *
+         * @return <code>true</code> if the plan may be carried out.
+         */
+        public synchronized boolean isPassed() {
+            for (String problem : problems) {
+                if (problem != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int size() {
+            return problems.length;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out what it takes for replaced system apps to come into use, and does it. The
+ * package manager watches /system/app and rescans an APK as soon as it is rewritten, so
+ * an ordinary app only needs its running processes stopped once the rescan has picked up
+ * the new version. A full reboot is kept for what can't be restarted on its own: the
+ * framework, apps living in core processes, files other than APKs, and anything the
+ * planner can't be sure about, such as a replacement with the same version code as the
+ * app it replaces, whose rescan can't be told from the old version.
+ */
+public class RecoveryPlanner {
+    public static final int NONE    = 0;
+    public static final int RESTART = 1;
+    public static final int REBOOT  = 2;
+
+    // run inside system_server or hold state the rest of the system depends on
+    private static final Set<String> CORE_PACKAGES = new HashSet<String>(Arrays.asList(
+            "android", "com.android.phone", "com.android.providers.settings",
+            "com.android.providers.telephony"));
+    // how many times to ask the package manager for the new version
+    static final int RESCAN_ATTEMPTS = 5;
+    static final long RESCAN_INTERVAL = 1000;
+    // dumpsys and ps can be slow on a busy phone, but not this slow
+    static final long COMMAND_TIMEOUT = 30000;
+
+    private final Shell shell;
+    private final List<Change> changes = new ArrayList<Change>();
+    private long rescanInterval = RESCAN_INTERVAL;
+
+    /**
+     * Class constructor.
+     *
+     * @param shell Shell to run the recovery commands in.
+     */
+    public RecoveryPlanner(Shell shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Sets how long to wait between two looks at the package manager.
+     *
+     * @param millis Interval in milliseconds.
+     */
+    public void setRescanInterval(long millis) {
+        rescanInterval = millis;
+    }
+
+    /**
+     * Adds a file that was replaced.
+     *
+     * @param path        Path of the replaced file.
+     * @param installed   Metadata of the app it replaced, or <code>null</code> if unknown.
+     * @param replacement Metadata of the app that was written, or <code>null</code> if
+     *                     unknown.
+     */
+    public void add(String path, ApkMetadata installed, ApkMetadata replacement) {
+        changes.add(new Change(path, installed, replacement));
+    }
+
+    /**
+     * Decides what one change needs.
+     *
+     * @param change The change.
+     * @return <code>NONE</code>, <code>RESTART</code> or <code>REBOOT</code>.
+     */
+    static int plan(Change change) {
+        File file = new File(change.path);
+        if (!file.getName().endsWith(".apk")
+                || !"/system/app".equals(file.getParent())) {
+            return REBOOT;
+        }
+        if ((change.installed == null) || (change.replacement == null)) {
+            return REBOOT;
+        }
+        // a different package would leave the old one registered until a reboot
+        if (!change.installed.packageName.equals(change.replacement.packageName)) {
+            return REBOOT;
+        }
+        if (CORE_PACKAGES.contains(change.replacement.packageName)) {
+            return REBOOT;
+        }
+        // the version code is how the rescan is seen, the old one would pass at once
+        if (change.installed.versionCode == change.replacement.versionCode) {
+            return REBOOT;
+        }
+        // an odex left next to the new APK belongs to the old code
+        String odex = change.path.substring(0, change.path.length() - 4) + ".odex";
+        if (new File(odex).exists()) {
+            return REBOOT;
+        }
+        return RESTART;
+    }
+
+    /**
+     * Returns the most expensive action any of the changes needs.
+     *
+     * @return <code>NONE</code>, <code>RESTART</code> or <code>REBOOT</code>.
+     */
+    public int plan() {
+        int action = NONE;
+        for (Change change : changes) {
+            action = Math.max(action, plan(change));
+            if (action == REBOOT) {
+                break;
+            }
+        }
+        return action;
+    }
+
+    /**
+     * Brings the changes into use without a reboot if that is enough for all of them.
+     * Nothing is run if one of them needs a reboot anyway.
+     *
+     * @throws InterruptedException If interrupted while waiting for the rescan.
+     * @return <code>true</code> if no reboot is needed any more.
+     */
+    public boolean recover() throws InterruptedException {
+        int action = plan();
+        if (action != RESTART) {
+            return action == NONE;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            if (!awaitRescan()) {
+                Metrics.current().count("recovery.rescan_timeout");
+                return false;
+            }
+            stopProcesses();
+        } catch (IOException e) {
+            Metrics.current().count("recovery.failed");
+            return false;
+        }
+        Metrics.current().span("recovery.restart", start, System.currentTimeMillis(), null);
+        Metrics.current().count("recovery.restarted", changes.size());
+        return true;
+    }
+
+    /**
+     * Waits until the package manager reports the new version of every changed package.
+     *
+     * @throws IOException If the shell failed.
+     * @throws InterruptedException If interrupted while waiting.
+     * @return <code>false</code> if it didn't within the allowed attempts.
+     */
+    private boolean awaitRescan() throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < RESCAN_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(rescanInterval);
+            }
+            // the dump lists every package, far more than a command's output keeps
+            VersionScanner scanner = new VersionScanner();
+            shell.run("dumpsys package", scanner, COMMAND_TIMEOUT);
+            boolean current = true;
+            for (Change change : changes) {
+                int version = scanner.getVersionCode(change.replacement.packageName);
+                if (version != change.replacement.versionCode) {
+                    current = false;
+                    break;
+                }
+            }
+            if (current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Kills every process of the changed packages, they are started again on demand.
+     *
+     * @throws IOException If the shell failed.
+     */
+    private void stopProcesses() throws IOException {
+        final StringBuilder pids = new StringBuilder();
+        shell.run("ps", new RootShell.OutputListener() {
+            public void onLine(String line) {
+                // USER PID PPID VSIZE RSS WCHAN PC NAME
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 3) {
+                    return;
+                }
+                String name = fields[fields.length - 1];
+                for (Change change : changes) {
+                    String pkg = change.replacement.packageName;
+                    if (name.equals(pkg) || name.startsWith(pkg + ":")) {
+                        pids.append(' ').append(fields[1]);
+                        return;
+                    }
+                }
+            }
+        }, COMMAND_TIMEOUT);
+        if (pids.length() > 0) {
+            shell.run("kill" + pids, null, COMMAND_TIMEOUT);
+        }
+    }
+
+    /**
+     * Finds the version code the package manager has for a package in the output of
+     * <code>dumpsys package</code>.
+     *
+     * @param dump        Output lines.
+     * @param packageName Package to look for.
+     * @return The version code, or <code>-1</code> if the package isn't listed.
+     */
+    static int findVersionCode(List<String> dump, String packageName) {
+        VersionScanner scanner = new VersionScanner();
+        for (String line : dump) {
+            scanner.onLine(line);
+        }
+        return scanner.getVersionCode(packageName);
+    }
+
+    /**
+     * Picks the version code of every package out of <code>dumpsys package</code> output
+     * as it streams past.
+     */
+    static class VersionScanner implements RootShell.OutputListener {
+        private final Map<String, Integer> versions = new HashMap<String, Integer>();
+        private String current = null;
+
+        public void onLine(String line) {
+            int start = line.indexOf("Package [");
+            if (start >= 0) {
+                int end = line.indexOf(']', start);
+                current = (end > 0) ? line.substring(start + "Package [".length(), end) : null;
+                return;
+            }
+            int index = line.indexOf("versionCode=");
+            if ((current == null) || (index < 0) || versions.containsKey(current)) {
+                return;
+            }
+            int end = index + "versionCode=".length();
+            int stop = end;
+            while ((stop < line.length()) && Character.isDigit(line.charAt(stop))) {
+                stop++;
+            }
+            try {
+                versions.put(current, Integer.parseInt(line.substring(end, stop)));
+            } catch (NumberFormatException e) {
+                versions.put(current, -1);
+            }
+        }
+
+        /**
+         * Returns the version code of a package.
+         *
+         * @param packageName Package to look for.
+         * @return The version code, or <code>-1</code> if the package isn't listed.
+         */
+        int getVersionCode(String packageName) {
+            Integer version = versions.get(packageName);
+            return (version != null) ? version : -1;
+        }
+    }
+
+    /**
+     * One replaced file.
+     */
+    static class Change {
+        final String path;
+        final ApkMetadata installed;
+        final ApkMetadata replacement;
+
+        Change(String path, ApkMetadata installed, ApkMetadata replacement) {
+            this.path = path;
+            this.installed = installed;
+            this.replacement = replacement;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps track of whether /system is mounted read-write. Jobs that need to write to it
+ * {@link #acquire()} it and {@link #release()} it when they are done; the first acquire
+ * remounts read-write only if <code>/proc/mounts</code> says it isn't already, and the
+ * last release puts it back to read-only after a short grace period, so nested and
+ * back-to-back jobs share a single read-write window. Every window is recorded.
+ */
+public class RemountManager {
+    /**
+     * Told when the mount point could not be put back to read-only. Called from the
+     * thread that tried, which may be the manager's timer.
+     */
+    public interface Listener {
+        void onFlushFailed(String mountPoint, String error, boolean retrying);
+    }
+
+    // how long to wait for another job before remounting read-only
+    static final long GRACE_MILLIS = 3000;
+    // how many windows to remember
+    private static final int HISTORY_SIZE = 16;
+    // a remount that takes longer than this is stuck on a busy device
+    static final long MOUNT_TIMEOUT = 15000;
+    // how many times a failed read-only remount is tried again before giving up
+    static final int FLUSH_RETRIES = 3;
+
+    private static RemountManager instance = null;
+
+    private final Shell shell;
+    private final String mountPoint;
+    private final Timer timer = new Timer("RemountManager", true);
+    private final List<Window> history = new ArrayList<Window>();
+    private TimerTask pendingRelease = null;
+    private int holders = 0;
+    // only put back what we changed ourselves
+    private boolean remountedByUs = false;
+    private long windowStart = 0;
+    private int retries = 0;
+    private String lastError = null;
+    private Listener listener = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param shell      Shell to run <code>mount</code> in.
+     * @param mountPoint Mount point to manage.
+     */
+    public RemountManager(Shell shell, String mountPoint) {
+        this.shell = shell;
+        this.mountPoint = mountPoint;
+    }
+
+    /**
+     * Returns the manager for /system on the shared root shell.
+     *
+     * @return The shared <code>RemountManager</code>.
+     */
+    public static synchronized RemountManager getInstance() {
+        if (instance == null) {
+            instance = new RemountManager(RootShell.getInstance(), "/system");
+        }
+        return instance;
+    }
+
+    /**
+     * Sets who to tell about failed read-only remounts.
+     *
+     * @param listener The listener, or <code>null</code> for none.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes the mount point writable for the caller. Every successful call must be paired
+     * with a {@link #release()}, normally in a <code>finally</code> block.
+     *
+     * @throws IOException If it could not be remounted read-write.
+     * @return <code>true</code> if it is writable because this manager remounted it,
+     *          <code>false</code> if it already was.
+     */
+    public synchronized boolean acquire() throws IOException {
+        if (pendingRelease != null) {
+            // the previous job just finished, keep its window open
+            pendingRelease.cancel();
+            pendingRelease = null;
+            retries = 0;
+        } else if (holders == 0) {
+            if (isReadOnly()) {
+                remount("rw");
+                remountedByUs = true;
+                windowStart = System.currentTimeMillis();
+            } else {
+                remountedByUs = false;
+            }
+        }
+        holders++;
+        return remountedByUs;
+    }
+
+    /**
+     * Takes over a read-write mount left behind by a job that died before putting it
+     * back, so it goes back to read-only after the grace period like one of our own.
+     */
+    public synchronized void reclaim() {
+        if ((holders > 0) || (pendingRelease != null) || remountedByUs || isReadOnly()) {
+            return;
+        }
+        remountedByUs = true;
+        windowStart = System.currentTimeMillis();
+        holders++;
+        release();
+    }
+
+    /**
+     * Gives up the caller's hold. When nothing else holds it, the mount point goes back to
+     * read-only after {@link #GRACE_MILLIS}, unless another job acquires it first.
+     */
+    public synchronized void release() {
+        if (holders == 0) {
+            return;
+        }
+        holders--;
+        if ((holders == 0) && remountedByUs) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        pendingRelease = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        timer.schedule(pendingRelease, GRACE_MILLIS);
+    }
+
+    /**
+     * Remounts read-only right away if no job holds the mount point, instead of waiting
+     * for the grace period.
+     *
+     * @return <code>false</code> if the read-only remount failed; it is tried again after
+     *          the grace period, up to {@link #FLUSH_RETRIES} times.
+     */
+    public synchronized boolean flush() {
+        if (pendingRelease != null) {
+            pendingRelease.cancel();
+            pendingRelease = null;
+        }
+        if ((holders > 0) || !remountedByUs) {
+            return true;
+        }
+        try {
+            remount("ro");
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            boolean retrying = (retries < FLUSH_RETRIES);
+            if (retrying) {
+                retries++;
+                scheduleFlush();
+            }
+            if (listener != null) {
+                listener.onFlushFailed(mountPoint, lastError, retrying);
+            }
+            return false;
+        }
+        retries = 0;
+        lastError = null;
+        remountedByUs = false;
+        history.add(new Window(windowStart, System.currentTimeMillis()));
+        if (history.size() > HISTORY_SIZE) {
+            history.remove(0);
+        }
+        return true;
+    }
+
+    /**
+     * Does a {@link #flush()} on the manager's timer instead of the calling thread. Doesn't
+     * wait for the remount or the manager's lock, so it is safe to call from the UI thread.
+     *
+     * @param then Run on the timer once the flush is done, may be <code>null</code>.
+     */
+    public void requestFlush(final Runnable then) {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+                if (then != null) {
+                    then.run();
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Returns why the last read-only remount failed.
+     *
+     * @return The error, or <code>null</code> if the mount point was put back since.
+     */
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Returns the most recent read-write windows, oldest first.
+     *
+     * @return Copy of the window history.
+     */
+    public synchronized List<Window> getHistory() {
+        return new ArrayList<Window>(history);
+    }
+
+    /**
+     * Checks <code>/proc/mounts</code> for the current mode.
+     *
+     * @return <code>true</code> unless the mount point is known to be mounted read-write.
+     */
+    public boolean isReadOnly() {
+        MountTable.Mount mount = MountTable.read().find(mountPoint);
+        return (mount == null) || !mount.mountPoint.equals(mountPoint) || mount.isReadOnly();
+    }
+
+    private void remount(String mode) throws IOException {
+        long start = System.currentTimeMillis();
+        RootShell.Result result = shell.run("busybox mount -o " + mode + ",remount "
+                + RootShell.quote(mountPoint), null, MOUNT_TIMEOUT);
+        Metrics.current().span("remount." + mode, start, System.currentTimeMillis(),
+                mountPoint);
+        if (result.exitCode != 0) {
+            Metrics.current().count("remount.failed");
+            throw new IOException("Could not remount " + mountPoint + " " + mode
+                    + (result.output.isEmpty() ? "" : ": " + result.output.get(0)));
+        }
+    }
+
+    /**
+     * One period during which the mount point was writable.
+     */
+    public static class Window {
+        public final long start;
+        public final long end;
+
+        Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getDuration() {
+            return end - start;
+        }
+    }
+}
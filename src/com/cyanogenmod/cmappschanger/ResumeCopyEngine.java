@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * Finishes a copy that was cut short. The destination is only trusted as far as it
+ * matches the source: both are read side by side up to the journaled offset, and
+ * writing starts at the first block that differs. Reading is much cheaper than
+ * writing on flash, and a bad block left by the interrupted copy is never kept.
+ */
+public class ResumeCopyEngine implements CopyEngine {
+    private final long offset;
+
+    /**
+     * Class constructor.
+     *
+     * @param offset Bytes the interrupted copy is known to have written.
+     */
+    public ResumeCopyEngine(long offset) {
+        this.offset = offset;
+    }
+
+    public String copy(File src, File dst, CopyProgress progress, boolean digest)
+            throws IOException {
+        MessageDigest md5 = digest ? FileDigests.newDigest() : null;
+        InputStream in = new FileInputStream(src);
+        try {
+            RandomAccessFile out = new RandomAccessFile(dst, "rw");
+            try {
+                long size = src.length();
+                long trusted = Math.min(offset, Math.min(out.length(), size));
+                byte[] buffer = new byte[CopyJournal.BLOCK_SIZE];
+                byte[] written = new byte[CopyJournal.BLOCK_SIZE];
+                long position = 0;
+                boolean matching = true;
+                int count;
+                while ((count = read(in, buffer)) > 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Interrupted after " + position
+                                + " bytes");
+                    }
+                    if (matching && (position + count <= trusted)) {
+                        out.readFully(written, 0, count);
+                        matching = same(buffer, written, count);
+                    } else if (matching) {
+                        matching = false;
+                    }
+                    if (!matching) {
+                        out.seek(position);
+                        out.write(buffer, 0, count);
+                    }
+                    if (md5 != null) {
+                        md5.update(buffer, 0, count);
+                    }
+                    if (progress != null) {
+                        progress.add(count);
+                    }
+                    position += count;
+                }
+                out.setLength(size);
+                if (md5 != null) {
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return (md5 != null) ? FileDigests.toHex(md5.digest()) : null;
+    }
+
+    private static boolean same(byte[] a, byte[] b, int count) {
+        for (int i = 0; i < count; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // fills the buffer unless the end of the file comes first
+    private static int read(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int count;
+        while ((total < buffer.length)
+                && ((count = in.read(buffer, total, buffer.length - total)) != -1)) {
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived root shell session. A single <code>su</code> process is started and every
+ * command is written to its <code>stdin</code>; the end of each command is found by a
+ * sentinel line that carries the command's exit code. If the process dies it is started
+ * again on the next command. Spawn times and command counts go to {@link Metrics}.
+ * <p>
+ * The process's <code>stdout</code> and <code>stderr</code> are drained by threads of
+ * their own from the moment it starts, so the shell never blocks on a full pipe however
+ * much it prints and however slowly its output is handled. Only the last lines of each
+ * command are kept, and a command can be given a timeout.
+ */
+public class RootShell implements Shell {
+    // lines of output kept per command, older ones are dropped
+    static final int OUTPUT_LINES = 256;
+    // lines kept of what the shell itself prints on stderr
+    private static final int ERROR_LINES = 32;
+    // su waits for the user to grant root, give them time to answer
+    private static final long SPAWN_TIMEOUT = 120000;
+    // queued by the stdout drain once the stream ends, compared by identity
+    private static final String END_OF_STREAM = new String("end of stream");
+
+    // shared session used by the copier, remount and reboot
+    private static RootShell instance = null;
+
+    private final String[] command;
+    private final String marker;
+    private Process process = null;
+    private OutputStream stdin = null;
+    private BlockingQueue<String> stdout = null;
+    private LineRing stderr = null;
+    private Drain stderrDrain = null;
+
+    /**
+     * Class constructor.
+     *
+     * @param command The shell to start, or <code>null</code> to use <code>su</code>.
+     */
+    public RootShell(String[] command) {
+        this.command = command;
+        marker = "__cmac_" + Long.toHexString(new Random().nextLong()) + "__";
+    }
+
+    /**
+     * Returns the shared root shell, creating it if needed. The <code>su</code> process
+     * itself is only started when the first command is run.
+     *
+     * @return The shared <code>RootShell</code>.
+     */
+    public static synchronized RootShell getInstance() {
+        if (instance == null) {
+            instance = new RootShell(null);
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared root shell, if one was started.
+     */
+    public static synchronized void closeInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Runs a command in the shell and waits for it to finish. <code>stderr</code> is
+     * folded into the returned output.
+     *
+     * @param cmd The command line to run.
+     * @throws IOException If the shell could not be started or died during the command.
+     * @return The exit code and output of the command.
+     */
+    public synchronized Result run(String cmd) throws IOException {
+        return run(cmd, null);
+    }
+
+    /**
+     * Runs a command in the shell and hands every output line to <code>listener</code> as
+     * soon as it is read.
+     *
+     * @param cmd      The command line or script to run.
+     * @param listener Receives each output line, may be <code>null</code>.
+     * @throws IOException If the shell could not be started or died during the command.
+     * @return The exit code and output of the command.
+     */
+    public synchronized Result run(String cmd, OutputListener listener) throws IOException {
+        return run(cmd, listener, 0);
+    }
+
+    /**
+     * Runs a command in the shell, handing every output line to <code>listener</code> as
+     * soon as it is read, and gives up after <code>timeout</code>. A command that times out
+     * may still be running, so the whole session is killed and started over next time.
+     *
+     * @param cmd      The command line or script to run.
+     * @param listener Receives each output line, may be <code>null</code>.
+     * @param timeout  Milliseconds to wait for the command, <code>0</code> for no limit.
+     * @throws IOException If the shell could not be started, died during the command or
+     *                      the command timed out.
+     * @return The exit code and the last <code>OUTPUT_LINES</code> lines of output.
+     */
+    public synchronized Result run(String cmd, OutputListener listener, long timeout)
+            throws IOException {
+        if (!isAlive()) {
+            start();
+        }
+
+        // group the command so that its stderr and stdin are kept away from our session
+        byte[] script = ("{ " + cmd + "\n} </dev/null 2>&1\necho \"" + marker + " $?\"\n")
+                .getBytes();
+        try {
+            stdin.write(script);
+            stdin.flush();
+        } catch (IOException e) {
+            // the shell went away since we last checked, nothing has run yet so try again
+            start();
+            stdin.write(script);
+            stdin.flush();
+        }
+
+        Metrics.current().count("shell.commands");
+        LineRing output = new LineRing(OUTPUT_LINES);
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+        String line;
+        while ((line = nextLine(deadline)) != END_OF_STREAM) {
+            if (line == null) {
+                destroy();
+                Metrics.current().count("shell.timeout");
+                throw new IOException("Timed out after " + timeout + " ms running \"" + cmd
+                        + "\"");
+            }
+            int index = line.indexOf(marker);
+            if (index < 0) {
+                output.add(line);
+                if (listener != null) {
+                    listener.onLine(line);
+                }
+                continue;
+            }
+            // output without a trailing newline ends up in front of the marker
+            if (index > 0) {
+                output.add(line.substring(0, index));
+                if (listener != null) {
+                    listener.onLine(line.substring(0, index));
+                }
+            }
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(line.substring(index + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+            if (output.getDropped() > 0) {
+                Metrics.current().count("shell.dropped", output.getDropped());
+            }
+            return new Result(exitCode, output.toList());
+        }
+
+        String reason = getLastError();
+        destroy();
+        throw new IOException("Shell exited while running \"" + cmd + "\""
+                + ((reason != null) ? ": " + reason : ""));
+    }
+
+    /**
+     * Waits for the next line from the shell.
+     *
+     * @param deadline Time to give up at, <code>0</code> to wait for as long as it takes.
+     * @return The line, <code>END_OF_STREAM</code> if the shell exited, or
+     *          <code>null</code> at the deadline.
+     * @throws InterruptedIOException If the thread was interrupted; the session is killed,
+     *                                 since the command's output can't be told apart from
+     *                                 the next one's any more.
+     */
+    private String nextLine(long deadline) throws InterruptedIOException {
+        try {
+            if (deadline == 0) {
+                return stdout.take();
+            }
+            long left = deadline - System.currentTimeMillis();
+            return (left > 0) ? stdout.poll(left, TimeUnit.MILLISECONDS) : stdout.poll();
+        } catch (InterruptedException e) {
+            destroy();
+            throw new InterruptedIOException("Interrupted while waiting for the shell");
+        }
+    }
+
+    // only for a shell that has exited, gives its stderr a moment to be read to the end
+    private String getLastError() {
+        if (stderrDrain == null) {
+            return null;
+        }
+        try {
+            stderrDrain.join(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stderr.getLast();
+    }
+
+    /**
+     * Checks whether the shell process is still running.
+     *
+     * @return <code>true</code> if the process has been started and has not exited.
+     */
+    public synchronized boolean isAlive() {
+        if (process == null) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Round-trips an empty command through the shell, starting it if necessary.
+     *
+     * @return <code>true</code> if the shell answered.
+     */
+    public synchronized boolean ping() {
+        try {
+            return run("true").exitCode == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Asks the shell to exit and releases the process.
+     */
+    public synchronized void close() {
+        if (stdin != null) {
+            try {
+                stdin.write("exit\n".getBytes());
+                stdin.flush();
+            } catch (IOException e) {
+                // it's already gone
+            }
+        }
+        destroy();
+    }
+
+    private void start() throws IOException {
+        destroy();
+        long spawnStart = System.currentTimeMillis();
+        if (command == null) {
+            process = Runtime.getRuntime().exec(findSu());
+        } else {
+            process = Runtime.getRuntime().exec(command);
+        }
+        stdin = process.getOutputStream();
+        stdout = new LinkedBlockingQueue<String>();
+        stderr = new LineRing(ERROR_LINES);
+        new Drain(process.getInputStream(), stdout, null).start();
+        stderrDrain = new Drain(process.getErrorStream(), null, stderr);
+        stderrDrain.start();
+
+        // su only answers once root was granted, so time it to the first marker
+        try {
+            stdin.write(("echo \"" + marker + " 0\"\n").getBytes());
+            stdin.flush();
+        } catch (IOException e) {
+            // already gone, its stderr says why
+        }
+        long deadline = spawnStart + SPAWN_TIMEOUT;
+        String line;
+        while (((line = nextLine(deadline)) != END_OF_STREAM) && (line != null)) {
+            if (line.indexOf(marker) >= 0) {
+                Metrics.current().span("su.spawn", spawnStart, System.currentTimeMillis(),
+                        null);
+                return;
+            }
+        }
+        String reason = (line == null) ? "timed out" : getLastError();
+        destroy();
+        Metrics.current().count("su.spawn.failed");
+        throw new IOException("Shell exited before it was ready"
+                + ((reason != null) ? ": " + reason : ""));
+    }
+
+    private void destroy() {
+        if (process != null) {
+            process.destroy();
+        }
+        process = null;
+        stdin = null;
+        stdout = null;
+    }
+
+    /**
+     * Reads one of the process's streams until it ends, into a queue for the command
+     * waiting on it or into a ring of the last lines.
+     */
+    private static class Drain extends Thread {
+        private final BufferedReader in;
+        private final BlockingQueue<String> queue;
+        private final LineRing ring;
+
+        Drain(InputStream in, BlockingQueue<String> queue, LineRing ring) {
+            super("RootShell drain");
+            setDaemon(true);
+            this.in = new BufferedReader(new InputStreamReader(in), 8192);
+            this.queue = queue;
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (queue != null) {
+                        queue.add(line);
+                    } else {
+                        ring.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // the process was destroyed
+            } finally {
+                if (queue != null) {
+                    queue.add(END_OF_STREAM);
+                }
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the proper <code>su</code> binary.
+     *
+     * @return Path of the <code>su</code> binary.
+     */
+    public static String findSu() {
+        String suLocation = "/system/bin/su";
+
+        if (!(new File(suLocation)).exists()) {
+            suLocation = "/system/xbin/su";
+        }
+
+        return suLocation;
+    }
+
+    /**
+     * Quotes a path or argument for use in a shell command line.
+     *
+     * @param arg The raw argument.
+     * @return <code>arg</code> wrapped in single quotes.
+     */
+    public static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Receives command output line by line while the command is still running.
+     */
+    public interface OutputListener {
+        void onLine(String line);
+    }
+
+    /**
+     * The outcome of one command.
+     */
+    public static class Result {
+        public final int exitCode;
+        public final List<String> output;
+
+        Result(int exitCode, List<String> output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A named set of replacement APKs: for each system app that is replaced, the path of its
+ * replacement along with that file's size, time and digest. The digest is filled in the
+ * first time the profile is applied, and lets later applies tell which apps are already
+ * installed by reading only the installed file, and only when the sizes agree.
+ */
+public class SelectionProfile {
+    public static final String SUFFIX = ".profile";
+    private static final String MAGIC = "cmac-profile 1";
+
+    private final String name;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private boolean dirty = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param name Name of the profile.
+     */
+    public SelectionProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the replacement of one app. Nothing is read until the profile is applied.
+     *
+     * @param app  File name of the system app.
+     * @param path Path of its replacement.
+     */
+    public void put(String app, String path) {
+        entries.put(app, new Entry(path, -1, 0, null));
+        dirty = true;
+    }
+
+    /**
+     * Returns the replacement path of one app.
+     *
+     * @param app File name of the system app.
+     * @return Path, or <code>null</code> if the profile doesn't replace it.
+     */
+    public String getPath(String app) {
+        Entry entry = entries.get(app);
+        return (entry != null) ? entry.path : null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Fills in the paths this profile sets for a list of apps.
+     *
+     * @param apps        File names of the system apps.
+     * @param systemPaths Path each app keeps if the profile doesn't replace it.
+     * @return Paths in the same order as <code>apps</code>.
+     */
+    public String[] toPaths(String[] apps, String[] systemPaths) {
+        String[] paths = new String[apps.length];
+        for (int i = 0; i < apps.length; i++) {
+            String path = getPath(apps[i]);
+            paths[i] = (path != null) ? path : systemPaths[i];
+        }
+        return paths;
+    }
+
+    /**
+     * Checks whether an app already has its replacement from this profile installed.
+     * Sizes are compared first, so a different APK usually costs nothing to spot; if
+     * they agree, the installed file is digested and compared with the replacement's
+     * digest, which is only computed if the replacement changed since it was recorded.
+     *
+     * @param app       File name of the system app.
+     * @param source    The replacement about to be copied.
+     * @param installed The installed app.
+     * @return <code>true</code> if copying <code>source</code> would change nothing.
+     */
+    public synchronized boolean isInstalled(String app, File source, File installed) {
+        Entry entry = entries.get(app);
+        if ((entry == null) || !entry.path.equals(source.getPath())) {
+            return false;
+        }
+        long size = source.length();
+        long mtime = source.lastModified();
+        if (installed.length() != size) {
+            return false;
+        }
+        try {
+            if ((entry.digest == null) || (entry.size != size) || (entry.mtime != mtime)) {
+                entry = new Entry(entry.path, size, mtime, FileDigests.digest(source));
+                entries.put(app, entry);
+                dirty = true;
+            }
+            return entry.digest.equals(FileDigests.digest(installed));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the profile changed since it was read or written.
+     *
+     * @return <code>true</code> if it should be written again.
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Lists the profiles in a directory.
+     *
+     * @param dir Profile directory.
+     * @return Profile names, sorted.
+     */
+    public static List<String> list(File dir) {
+        List<String> names = new ArrayList<String>();
+        String[] files = dir.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(SUFFIX)) {
+                    names.add(file.substring(0, file.length() - SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    /**
+     * Returns the file a profile is kept in.
+     *
+     * @param dir  Profile directory.
+     * @param name Profile name.
+     * @return The profile file.
+     */
+    public static File getFile(File dir, String name) {
+        return new File(dir, name.replace('/', '_') + SUFFIX);
+    }
+
+    /**
+     * Reads a profile.
+     *
+     * @param file Profile file.
+     * @return The profile, or <code>null</code> if it is missing, truncated or unreadable.
+     */
+    public static SelectionProfile read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"), 8192);
+            try {
+                if (!MAGIC.equals(in.readLine())) {
+                    return null;
+                }
+                String line = in.readLine();
+                if ((line == null) || !line.startsWith("name\t")) {
+                    return null;
+                }
+                SelectionProfile profile = new SelectionProfile(line.substring(5));
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields[0].equals("end")) {
+                        if (Integer.parseInt(fields[1]) != profile.entries.size()) {
+                            return null;
+                        }
+                        return profile;
+                    }
+                    profile.entries.put(fields[1], new Entry(fields[2],
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+                            (fields[5].length() > 0) ? fields[5] : null));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // fall through, an unreadable profile is no profile
+        } catch (RuntimeException e) {
+            // malformed line
+        }
+        return null;
+    }
+
+    /**
+     * Writes the profile to a temporary file and renames it over <code>file</code>.
+     *
+     * @param file Profile file.
+     * @throws IOException If the profile could not be written.
+     */
+    public synchronized void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            out.write(MAGIC + "\n");
+            out.write("name\t" + name + "\n");
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                out.write("app\t" + item.getKey() + "\t" + entry.path + "\t" + entry.size + "\t"
+                        + entry.mtime + "\t" + ((entry.digest != null) ? entry.digest : "")
+                        + "\n");
+            }
+            out.write("end\t" + entries.size() + "\n");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    private static class Entry {
+        final String path;
+        final long size;
+        final long mtime;
+        final String digest;
+
+        Entry(String path, long size, long mtime, String digest) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.IOException;
+
+/**
+ * Something that runs shell commands as root. {@link RootShell} is the real one; anything
+ * written against this interface can be driven by a fake that just records the commands.
+ */
+public interface Shell {
+    /**
+     * Runs a command and waits for it to finish.
+     *
+     * @param cmd The command line to run.
+     * @throws IOException If the shell could not run the command.
+     * @return The exit code and output of the command.
+     */
+    RootShell.Result run(String cmd) throws IOException;
+
+    /**
+     * Runs a command and hands every output line to <code>listener</code> as soon as it is
+     * read.
+     *
+     * @param cmd      The command line or script to run.
+     * @param listener Receives each output line, may be <code>null</code>.
+     * @throws IOException If the shell could not run the command.
+     * @return The exit code and output of the command.
+     */
+    RootShell.Result run(String cmd, RootShell.OutputListener listener) throws IOException;
+
+    /**
+     * Runs a command as {@link #run(String, RootShell.OutputListener)} does, but gives up
+     * after <code>timeout</code>.
+     *
+     * @param cmd      The command line or script to run.
+     * @param listener Receives each output line, may be <code>null</code>.
+     * @param timeout  Milliseconds to wait for the command, <code>0</code> for no limit.
+     * @throws IOException If the shell could not run the command or it timed out.
+     * @return The exit code and output of the command.
+     */
+    RootShell.Result run(String cmd, RootShell.OutputListener listener, long timeout)
+            throws IOException;
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies with <code>cp</code> in the root shell. This is the only engine that can write
+ * to /system, and the fallback for anything the app itself cannot read or write.
+ * {@link CopyJob} batches these copies into a {@link CopyScript} rather than calling
+ * {@link #copy(File, File, CopyProgress, boolean)} once per file; the engine itself is
+ * for the odd copy outside a job, such as a blob the {@link BackupStore} can't read.
+ * <p>
+ * A digested copy pipes the source through <code>busybox tee</code> into
+ * <code>md5sum</code>, so the digest comes from the same read that writes the copy.
+ */
+public class ShellCopyEngine implements CopyEngine {
+    // tee's errors are kept here, its exit code is lost in the pipe
+    static final String ERROR_DIR = "/data/local/tmp";
+    // with the shell's pid, keeps the error files of copies in flight apart
+    private static final AtomicInteger nextCopy = new AtomicInteger();
+
+    private final Shell shell;
+
+    /**
+     * Class constructor.
+     *
+     * @param shell Shell to copy in, or <code>null</code> for an engine that only marks
+     *               the copies that need one, like {@link CopyEngines#SHELL}.
+     */
+    public ShellCopyEngine(Shell shell) {
+        this.shell = shell;
+    }
+
+    public String copy(File src, File dst, CopyProgress progress, boolean digest)
+            throws IOException {
+        if (shell == null) {
+            throw new IOException("No root shell to copy " + src + " with");
+        }
+        String cmd;
+        if (digest) {
+            String errors = RootShell.quote(ERROR_DIR + "/cmac-copy-") + "$$-"
+                    + nextCopy.getAndIncrement() + ".err";
+            cmd = teeCommand(src.getPath(), dst.getPath(), errors)
+                    + "; err=$(cat " + errors + "); rm -f " + errors
+                    + "; echo \"${s%% *}\"; if [ -n \"$err\" ]; then echo \"$err\"; false; fi";
+        } else {
+            cmd = "cp -f " + RootShell.quote(src.getPath()) + " "
+                    + RootShell.quote(dst.getPath());
+        }
+        RootShell.Result result = shell.run(cmd);
+        if (result.exitCode != 0) {
+            throw new IOException(result.output.isEmpty()
+                    ? "cp exited with " + result.exitCode
+                    : result.output.get(result.output.size() - 1));
+        }
+        // cp gives no progress of its own, the file counts once it is done
+        if (progress != null) {
+            progress.add(src.length());
+        }
+        return (digest && !result.output.isEmpty()) ? result.output.get(0) : null;
+    }
+
+    /**
+     * Builds a command that copies <code>src</code> to <code>dst</code> and leaves the
+     * <code>md5sum</code> line of the copied bytes in <code>$s</code>.
+     *
+     * @param src    Source path.
+     * @param dst    Destination path.
+     * @param errors Quoted path of a file to collect error messages in.
+     * @return Shell command.
+     */
+    static String teeCommand(String src, String dst, String errors) {
+        // stderr goes first, so a source that can't be opened is reported too
+        return "s=$(busybox tee " + RootShell.quote(dst) + " 2>" + errors + " < "
+                + RootShell.quote(src) + " | busybox md5sum)";
+    }
+}
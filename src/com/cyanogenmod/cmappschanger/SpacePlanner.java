@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2010 Pixelpod INTERNATIONAL, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.cyanogenmod.cmappschanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Works out whether a copy plan fits on its destination devices, and in what order to
+ * carry it out so that it does. A copy over an existing file truncates it first, so on
+ * its device it never takes more than the difference between the two sizes, in blocks.
+ * Copies that free space go first, largest saving first, and only then the ones that
+ * take it, largest first; usage then never rises above where it ends up. A device whose
+ * peak doesn't fit in its free space turns down every entry going to it.
+ */
+public class SpacePlanner {
+    /**
+     * Tells how much space is free on a file system, and how it is allocated.
+     */
+    public interface SpaceProbe {
+        long getAvailable(String path) throws IOException;
+
+        long getBlockSize(String path) throws IOException;
+    }
+
+    // plans larger than this have their sizes read on a pool of threads
+    static final int PARALLEL_THRESHOLD = 32;
+
+    private final int threads;
+    private final SpaceProbe space;
+    private final MountTable mounts = MountTable.read();
+
+    /**
+     * Class constructor.
+     *
+     * @param threads Number of threads to read sizes with.
+     * @param space   Free space lookup for the destination devices.
+     */
+    public SpacePlanner(int threads, SpaceProbe space) {
+        this.threads = Math.max(1, threads);
+        this.space = space;
+    }
+
+    /**
+     * Plans a set of copies.
+     *
+     * @param sources      Source of every entry, <code>null</code> for entries that won't
+     *                      be copied.
+     * @param destinations Destination path of every entry.
+     * @throws InterruptedException If interrupted while reading sizes.
+     * @return The plan.
+     */
+    public Plan plan(final String[] sources, final String[] destinations)
+            throws InterruptedException {
+        final long[] sourceSizes = new long[sources.length];
+        final long[] destinationSizes = new long[sources.length];
+        List<Callable<Void>> reads = new ArrayList<Callable<Void>>();
+        int chunk = (sources.length > PARALLEL_THRESHOLD)
+                ? (sources.length + threads - 1) / threads : sources.length;
+        for (int start = 0; start < sources.length; start += chunk) {
+            final int from = start;
+            final int to = Math.min(sources.length, start + chunk);
+            reads.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        if (sources[i] != null) {
+                            sourceSizes[i] = new File(sources[i]).length();
+                            destinationSizes[i] = new File(destinations[i]).length();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        if (reads.size() > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(reads.size());
+            try {
+                pool.invokeAll(reads);
+            } finally {
+                pool.shutdownNow();
+            }
+        } else if (reads.size() == 1) {
+            try {
+                reads.get(0).call();
+            } catch (Exception e) {
+                // only reads sizes, which don't throw
+            }
+        }
+
+        Map<String, Device> devices = new LinkedHashMap<String, Device>();
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == null) {
+                continue;
+            }
+            String root = getRoot(new File(destinations[i]));
+            Device device = devices.get(root);
+            if (device == null) {
+                device = new Device(root);
+                devices.put(root, device);
+            }
+            device.entries.add(i);
+        }
+
+        final Plan plan = new Plan(sources.length);
+        for (Device device : devices.values()) {
+            for (int index : device.entries) {
+                plan.roots[index] = device.root;
+            }
+            try {
+                device.available = space.getAvailable(device.root);
+                device.blockSize = Math.max(1, space.getBlockSize(device.root));
+            } catch (IOException e) {
+                plan.reject(device, "Free space on " + device.root + " is unknown: "
+                        + e.getMessage());
+                continue;
+            }
+            for (int index : device.entries) {
+                plan.deltas[index] = device.round(sourceSizes[index])
+                        - device.round(destinationSizes[index]);
+            }
+            Collections.sort(device.entries, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long x = plan.deltas[a];
+                    long y = plan.deltas[b];
+                    if ((x < 0) != (y < 0)) {
+                        return (x < 0) ? -1 : 1;
+                    }
+                    // most freed first, then largest growth first
+                    long order = (x < 0) ? x - y : y - x;
+                    return (order < 0) ? -1 : ((order == 0) ? 0 : 1);
+                }
+            });
+            long used = 0;
+            for (int index : device.entries) {
+                used += plan.deltas[index];
+                device.peak = Math.max(device.peak, used);
+            }
+            device.net = used;
+            if (device.peak > device.available) {
+                plan.reject(device, device.root + " needs " + device.peak
+                        + " more bytes at its fullest, only " + device.available
+                        + " are free");
+            }
+        }
+        plan.devices.addAll(devices.values());
+        return plan;
+    }
+
+    // the mount point of a destination, or its directory if the mounts can't be read
+    private String getRoot(File dst) {
+        MountTable.Mount mount = mounts.find(dst.getAbsolutePath());
+        if (mount != null) {
+            return mount.mountPoint;
+        }
+        File parent = dst.getAbsoluteFile().getParentFile();
+        return (parent != null) ? parent.getPath() : "/";
+    }
+
+    /**
+     * The space a plan takes on one device.
+     */
+    public static class Device {
+        public final String root;
+        long available = 0;
+        long blockSize = 1;
+        long net = 0;
+        long peak = 0;
+        // in the order to copy them
+        final List<Integer> entries = new ArrayList<Integer>();
+
+        Device(String root) {
+            this.root = root;
+        }
+
+        public long getAvailable() {
+            return available;
+        }
+
+        /**
+         * Returns how much more space the device holds once the plan is done.
+         *
+         * @return Bytes, negative if the plan frees space.
+         */
+        public long getNet() {
+            return net;
+        }
+
+        /**
+         * Returns the most space the plan takes on the device at any point.
+         *
+         * @return Bytes above what it uses now.
+         */
+        public long getPeak() {
+            return peak;
+        }
+
+        long round(long size) {
+            return (size + blockSize - 1) / blockSize * blockSize;
+        }
+    }
+
+    /**
+     * The outcome of planning: the order to copy in, and the entries that don't fit.
+     */
+    public static class Plan {
+        private final String[] problems;
+        private final String[] roots;
+        private final long[] deltas;
+        private final List<Device> devices = new ArrayList<Device>();
+
+        Plan(int size) {
+            problems = new String[size];
+            roots = new String[size];
+            deltas = new long[size];
+        }
+
+        private void reject(Device device, String problem) {
+            for (int index : device.entries) {
+                problems[index] = problem;
+            }
+        }
+
+        /**
+         * Returns the planned entries in the order to copy them, one device after the
+         * other.
+         *
+         * @return Entry indices.
+         */
+        public List<Integer> getOrder() {
+            List<Integer> order = new ArrayList<Integer>();
+            for (Device device : devices) {
+                order.addAll(device.entries);
+            }
+            return order;
+        }
+
+        public List<Device> getDevices() {
+            return devices;
+        }
+
+        /**
+         * Returns the device an entry is copied to.
+         *
+         * @param index Index of the entry in the plan.
+         * @return Its mount point, or <code>null</code> if the entry isn't planned.
+         */
+        public String getRoot(int index) {
+            return roots[index];
+        }
+
+        /**
+         * Returns why an entry can't be copied.
+         *
+         * @param index Index of the entry in the plan.
+         * @return The problem, or <code>null</code> if its device has room.
+         */
+        public String getProblem(int index) {
+            return problems[index];
+        }
+
+        /**
+         * Returns whether every device has room for its part of the plan.
+         *
+         * @return <code>true</code> if the plan may be carried out.
+         */
+        public boolean isPassed() {
+            for (String problem : problems) {
+                if (problem != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int size() {
+            return problems.length;
+        }
+    }
+}
@@ -25,11 +25,13 @@
 
 package com.cyanogenmod.cmappschanger;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Arrays;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -42,9 +44,12 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.text.ClipboardManager;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -52,7 +57,10 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * @author Timothy Caraballo
@@ -68,6 +76,8 @@ public class TypeAppFresh extends ListActivity {
     public static final int MENU_BACKUP  = 1;
     public static final int MENU_RESTORE = 2;
     public static final int MENU_RESET   = 3;
+    public static final int MENU_BACKUP_MODE = 4;
+    public static final int MENU_PROFILES = 5;
     // Dialogs
     public static final int DIALOG_NEED_REBOOT      =  101;
     public static final int DIALOG_REBOOT           =  102;
@@ -77,21 +87,63 @@ public class TypeAppFresh extends ListActivity {
     public static final int DIALOG_REMOUNT_FAILED   =  106;
     public static final int DIALOG_PROGRESS         =  107;
     public static final int PDIALOG_DISMISS         =  108;
+    public static final int DIALOG_BACKUP_INCOMPLETE = 109;
+    public static final int DIALOG_BACKUP_STALE     =  110;
+    public static final int DIALOG_BACKUP_MODE      =  111;
+    public static final int DIALOG_PICK_GENERATION  =  112;
+    public static final int DIALOG_PROFILES         =  113;
+    public static final int DIALOG_SAVE_PROFILE     =  114;
+    public static final int DIALOG_RESUME           =  115;
+    public static final int DIALOG_STORE_FAILED     =  116;
+    public static final int DIALOG_ARCHIVE_FAILED   =  117;
+    // backup formats
+    public static final int BACKUP_FILES              = 0;
+    public static final int BACKUP_ARCHIVE_STORED     = 1;
+    public static final int BACKUP_ARCHIVE_COMPRESSED = 2;
+    public static final int BACKUP_STORE              = 3;
+    public static final int BACKUP_STORE_DELTA        = 4;
+    private static final String PREF_BACKUP_MODE = "backup_mode";
+    // generations kept in the backup store
+    private static final int KEEP_GENERATIONS = 5;
     // ContextMenu selections
     public static final int CONTEXT_COPY  = 201;
     public static final int CONTEXT_PASTE = 202;
     public static final int CONTEXT_CLEAR = 203;
     
     private static String lastFolder = null;
-    private String[] apps;
-    private String[] sysAppPaths;
+    // the profile last loaded or saved, so applying it can skip what's installed
+    private static SelectionProfile profile = null;
+    private String[] apps = new String[0];
+    private String[] sysAppPaths = new String[0];
+    // the listing the adapter was built from
+    private AppInventory inventory = null;
+    // selections from before a rotation, until there is a listing to put them on
+    private String[] pendingApps = null;
+    private String[] pendingPaths = null;
+    // both kept for the process along with the listing, so a recreated activity has them
+    private static MetadataIndex metadataIndex = null;
+    private static BackupManifest backupManifest = null;
+    private EditText filterText = null;
     private int listPosition;
     public ProgressDialog progressDialog = null;
     private static int progressDialogTitle = R.string.diag_copying;
     private AppListAdapter adapter = null;
     private static AsyncTask<Object, Object, Void> fileCopier = null;
+    private static InventoryLoader inventoryLoader = null;
     private static ClipboardManager clipboard = null;
     public static String extStorage = Environment.getExternalStorageDirectory().getPath();
+    // held by the shared RemountManager, so it must not reference an activity
+    private static final RemountManager.Listener REMOUNT_LOG = new RemountManager.Listener() {
+        public void onFlushFailed(String mountPoint, String error, boolean retrying) {
+            Log.e(TAG, "Could not put " + mountPoint + " back to read-only: " + error
+                    + (retrying ? ", trying again" : ", giving up"));
+        }
+    };
+    private static final Runnable CLOSE_SHELL = new Runnable() {
+        public void run() {
+            RootShell.closeInstance();
+        }
+    };
     
     /** Called when the activity is first created. */
     @Override
@@ -99,36 +151,48 @@ public class TypeAppFresh extends ListActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
         clipboard = (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
+        RemountManager.getInstance().setListener(REMOUNT_LOG);
         
-        File appsDir = new File("/system/app");
-        apps = appsDir.list();
-        // remove all file references for the sake of remounting
-        appsDir = null;
+        // narrows the list as the user types, the text itself survives rotation
+        filterText = (EditText) findViewById(R.id.filter);
+        filterText.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
-        Arrays.sort(apps);
-        sysAppPaths = new String[apps.length];
-        
-        File sdApps = new File(extStorage + "/SystemApps");
-        if (!sdApps.exists()) {
-            try {
-                sdApps.mkdir();
-            } catch (Exception e) {
-                Log.e(TAG,e.toString());
-                showDialog(DIALOG_MKDIR_FAILED);
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
             }
-        }
 
-        // build array of installed app paths
-        for (int i = 0; i < apps.length; i++) {
-            sysAppPaths[i] = "/system/app/" + apps[i];
-        }
-        
+            public void afterTextChanged(Editable s) {
+                adapter.setFilter(s.toString());
+            }
+        });
+
+        // an empty list shows the loading text until the apps are listed
         setListAdapter(new AppListAdapter(this, apps));
         adapter = (AppListAdapter) this.getListAdapter();
-        
+
         // restore paths on rotate
-        if ((savedInstanceState != null) && savedInstanceState.containsKey("paths")) {
-            adapter.setPaths(savedInstanceState.getStringArray("paths"));
+        if ((savedInstanceState != null) && savedInstanceState.containsKey("apps")
+                && savedInstanceState.containsKey("paths")) {
+            pendingApps = savedInstanceState.getStringArray("apps");
+            pendingPaths = savedInstanceState.getStringArray("paths");
+        }
+
+        // the last listing is shown right away, the loader swaps in a new one if it changed
+        AppInventory cached = AppInventory.peek();
+        if (cached != null) {
+            showInventory(cached);
+        }
+        if ((inventoryLoader != null)
+                && (inventoryLoader.getStatus() != AsyncTask.Status.FINISHED)) {
+            inventoryLoader.setActivity(this);
+        } else if ((cached != null) && (cached.getMetadata() != null) && (metadataIndex != null)
+                && cached.isCurrent(new File(AppInventory.SYSTEM_APP_DIR))) {
+            // a finished load of the same listing, nothing to do again
+            ((TextView) findViewById(android.R.id.empty)).setText(R.string.no_matching_apps);
+        } else {
+            inventoryLoader = new InventoryLoader(this);
+            inventoryLoader.execute();
         }
 
         if ((fileCopier != null) && (fileCopier.getStatus() != AsyncTask.Status.FINISHED)) {
@@ -136,6 +200,11 @@ public class TypeAppFresh extends ListActivity {
             ((FileCopier) fileCopier).setActivity(this);
             return;
         }
+        // an interrupted job is only picked up again when the user asks, in case it is
+        // what brought the process down
+        if ((savedInstanceState == null) && getJournalFile().exists()) {
+            showDialog(DIALOG_RESUME);
+        }
 
         // do we need to show the welcome screen?
         //SharedPreferences settings = getPreferences(Activity.MODE_PRIVATE);
@@ -150,10 +219,39 @@ public class TypeAppFresh extends ListActivity {
         registerForContextMenu(getListView());
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // the process may not live out the grace period once we're in the background;
+        // the remount itself can take seconds, so it runs on the manager's timer
+        if ((fileCopier == null) || (fileCopier.getStatus() == AsyncTask.Status.FINISHED)) {
+            RemountManager.getInstance().requestFlush(null);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // keep the root shell around for rotations and running copies only; closing waits
+        // for the shell, so it is done after the flush onPause() queued
+        if (isFinishing()
+                && ((fileCopier == null) || (fileCopier.getStatus() == AsyncTask.Status.FINISHED))) {
+            RemountManager.getInstance().requestFlush(CLOSE_SHELL);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle bundle) {
         // store the selected apps
-        bundle.putStringArray("paths", adapter.appPaths);
+        if (pendingPaths != null) {
+            bundle.putStringArray("apps", pendingApps);
+            bundle.putStringArray("paths", pendingPaths);
+        } else {
+            bundle.putStringArray("apps", apps);
+            bundle.putStringArray("paths", adapter.getPaths());
+        }
     }
 
     @Override
@@ -162,25 +260,27 @@ public class TypeAppFresh extends ListActivity {
         menu.add(0, MENU_BACKUP,  0, R.string.menu_backup);
         menu.add(0, MENU_RESTORE, 0, R.string.menu_restore).setIcon(android.R.drawable.ic_menu_revert);
         menu.add(0, MENU_RESET,   0, R.string.menu_reset).setIcon(R.drawable.ic_menu_clear_playlist);
+        menu.add(0, MENU_BACKUP_MODE, 0, R.string.menu_backup_mode)
+                .setIcon(android.R.drawable.ic_menu_preferences);
+        menu.add(0, MENU_PROFILES, 0, R.string.menu_profiles)
+                .setIcon(android.R.drawable.ic_menu_save);
         return true;
     }
     
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         // if the user hasn't selected any apps, the next two menu items are useless
-        boolean pathsSet = !Arrays.equals(sysAppPaths, adapter.getPaths());
+        boolean pathsSet = adapter.hasChanges();
         menu.findItem(MENU_APPLY).setEnabled(pathsSet);
         menu.findItem(MENU_RESET).setEnabled(pathsSet);
 
-        // Check for a backup to see if we should enable the restore option
-        boolean backupExists = true;
-        for (int i = 0; i < apps.length; i++) {
-            // check if any existing apps are not backed up
-            if (!(new File(extStorage + "/SystemApps/" + apps[i]).exists())) {
-                backupExists = false;
-                break;
-            }
-        }
+        // nothing to back up or restore until the apps are listed
+        boolean listed = apps.length > 0;
+        menu.findItem(MENU_BACKUP).setEnabled(listed);
+
+        // Check the backup manifest to see if we should enable the restore option
+        boolean backupExists = listed && (backupManifest != null)
+                && backupManifest.covers(apps);
         menu.findItem(MENU_RESTORE).setEnabled(backupExists);
         return true;
     }
@@ -201,13 +301,22 @@ public class TypeAppFresh extends ListActivity {
         case MENU_RESET:
             resetSelections();
             return true;
+        case MENU_BACKUP_MODE:
+            showDialog(DIALOG_BACKUP_MODE);
+            return true;
+        case MENU_PROFILES:
+            // the list changes whenever a profile is saved
+            removeDialog(DIALOG_PROFILES);
+            showDialog(DIALOG_PROFILES);
+            return true;
         }
         return false;
     }
     
     @Override
     public void onListItemClick(ListView parent, View v, int position, long id) {
-        listPosition = position; 
+        // remember the app rather than the row, the filter may change while picking
+        listPosition = adapter.getAppIndex(position);
         Intent intent = new Intent("org.openintents.action.PICK_FILE");
         Uri startDir = null;
 
@@ -236,6 +345,7 @@ public class TypeAppFresh extends ListActivity {
                     if (path.toLowerCase().startsWith("file://")) {
                         File appFile = new File(URI.create(path)); 
                         path = appFile.getAbsolutePath();
+                        checkReplacement(listPosition, path);
                         adapter.setPathAt(listPosition, path);
                         lastFolder = appFile.getParent();
                     }
@@ -248,10 +358,11 @@ public class TypeAppFresh extends ListActivity {
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
         super.onCreateContextMenu(menu, v, menuInfo);
         AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) menuInfo;
-        menu.setHeaderTitle(apps[info.position]);
+        int app = adapter.getAppIndex(info.position);
+        menu.setHeaderTitle(apps[app]);
 
         // did the user set this path?
-        if ( ! adapter.getPathAt(info.position).equals(sysAppPaths[info.position])) {
+        if (adapter.isChanged(app)) {
             menu.add(Menu.NONE, CONTEXT_COPY,  1, R.string.context_copy);
             menu.add(Menu.NONE, CONTEXT_CLEAR, 3, R.string.context_clear);
         }
@@ -266,15 +377,18 @@ public class TypeAppFresh extends ListActivity {
     public boolean onContextItemSelected(MenuItem item) {
         AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo)item.getMenuInfo();
 
+        int app = adapter.getAppIndex(info.position);
+
         switch(item.getItemId()) {
         case CONTEXT_COPY:
-            clipboard.setText( adapter.getPathAt(info.position));
+            clipboard.setText( adapter.getPathAt(app));
             break;
         case CONTEXT_PASTE:
-            adapter.setPathAt(info.position, clipboard.getText().toString());
+            checkReplacement(app, clipboard.getText().toString());
+            adapter.setPathAt(app, clipboard.getText().toString());
             break;
         case CONTEXT_CLEAR:
-            adapter.setPathAt(info.position, sysAppPaths[info.position]);
+            adapter.setPathAt(app, sysAppPaths[app]);
             break;
         default:
             super.onContextItemSelected(item);
@@ -292,19 +406,88 @@ public class TypeAppFresh extends ListActivity {
             dPaths[i] = extStorage + "/SystemApps/" + apps[i];
         }
 
-        copyFiles(R.string.diag_backing_up, R.string.toast_backed_up, sysAppPaths, dPaths);
+        FileCopier copier = new FileCopier(this);
+        CopyJob job = copier.getJob();
+        job.setSpaceProbe(new FileCopier.StatFsProbe());
+        int mode = getBackupMode();
+        if ((mode == BACKUP_STORE) || (mode == BACKUP_STORE_DELTA)) {
+            // generations are recorded in the store instead of the manifest
+            job.setStoreTarget(getBackupStore(), KEEP_GENERATIONS, Build.FINGERPRINT);
+        } else {
+            if (mode == BACKUP_FILES) {
+                job.setIncremental(true);
+            } else {
+                // APKs are zip files already, storing them is usually as small and much faster
+                job.setArchiveTarget(
+                        new File(extStorage + "/SystemApps/" + AppArchive.FILE_NAME),
+                        (mode == BACKUP_ARCHIVE_STORED)
+                                ? AppArchive.STORE : AppArchive.DEFAULT_COMPRESSION);
+            }
+            job.setManifest(new File(extStorage + "/SystemApps/" + BackupManifest.FILE_NAME),
+                    Build.FINGERPRINT);
+        }
+        job.setJournal(getJournalFile(), "backup");
+        copier.setTrace(getTraceDir(), "backup");
+        copyFiles(R.string.diag_backing_up, R.string.toast_backed_up, sysAppPaths, dPaths, copier);
     }
 
     /**
      * Restores backed up apps from /sdcard/SystemApps/
      */
     protected void restoreApps() {
+        if (usesBackupStore()) {
+            // let the user pick a generation, the list changes with every backup
+            removeDialog(DIALOG_PICK_GENERATION);
+            showDialog(DIALOG_PICK_GENERATION);
+            return;
+        }
+        restoreApps(backupManifest, null);
+    }
+
+    /**
+     * Restores the apps recorded in a backup manifest.
+     * 
+     * @param manifest The backup to restore.
+     * @param store    The store holding the apps, or <code>null</code> if they are in
+     *                  /sdcard/SystemApps.
+     */
+    private void restoreApps(BackupManifest manifest, BackupStore store) {
+        // refuse backups that were cut short or taken on another build
+        if ((manifest == null) || !manifest.isComplete() || !manifest.covers(apps)) {
+            showDialog(DIALOG_BACKUP_INCOMPLETE);
+            return;
+        }
+        if (manifest.isStale(Build.FINGERPRINT)) {
+            showDialog(DIALOG_BACKUP_STALE);
+            return;
+        }
+
         String[] sPaths = new String[apps.length];
+        // the backup says what every app should be, hold the copies to that
+        String[] digests = new String[apps.length];
         for(int i = 0; i < sPaths.length; i++) {
-            sPaths[i] = extStorage + "/SystemApps/" + apps[i];
+            digests[i] = manifest.get(apps[i]).digest;
+            if (store != null) {
+                sPaths[i] = store.getBlob(digests[i]).getPath();
+            } else {
+                sPaths[i] = extStorage + "/SystemApps/" + apps[i];
+            }
         }
 
-        copyFiles(R.string.diag_restoring, R.string.toast_restored, sPaths, sysAppPaths);
+        FileCopier copier = new FileCopier(this);
+        CopyJob job = copier.getJob();
+        job.setSpaceProbe(new FileCopier.StatFsProbe());
+        job.setIncremental(true);
+        if (store != null) {
+            job.setStoreSource(store);
+        } else if (manifest.getArchive() != null) {
+            job.setArchiveSource(
+                    new File(extStorage + "/SystemApps/" + manifest.getArchive()));
+        }
+        job.setVerifier(new CopyVerifier(digests));
+        job.setJournal(getJournalFile(), "restore");
+        copier.setTrace(getTraceDir(), "restore");
+        copyFiles(R.string.diag_restoring, R.string.toast_restored, sPaths, sysAppPaths, copier);
         resetSelections();
     }
     
@@ -312,17 +495,91 @@ public class TypeAppFresh extends ListActivity {
      * Resets all selected apps to empty.
      */
     protected void resetSelections() {
-        adapter.setPaths(sysAppPaths);        
+        adapter.reset();
     }    
 
     /**
      * Initiates copying of selected apps to the system.
      */
     protected void applySelections() {
-        String[] sPaths = adapter.getPaths();
-        copyFiles( R.string.diag_applying, R.string.toast_applied, sPaths, sysAppPaths);
+        // only the rows the user actually changed go into the plan
+        int[] changed = adapter.getChangedPositions();
+        String[] sPaths = new String[changed.length];
+        String[] dPaths = new String[changed.length];
+        String[] packages = new String[changed.length];
+        ApkMetadata[] installed = new ApkMetadata[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            sPaths[i] = adapter.getPathAt(changed[i]);
+            dPaths[i] = sysAppPaths[changed[i]];
+            installed[i] = adapter.getMetadataAt(changed[i]);
+            packages[i] = (installed[i] != null) ? installed[i].packageName : null;
+        }
+        FileCopier copier = new FileCopier(this);
+        CopyJob job = copier.getJob();
+        if (profile != null) {
+            job.setProfile(profile, SelectionProfile.getFile(getProfileDir(),
+                    profile.getName()));
+        }
+        job.setPreflight(packages);
+        job.setSpaceProbe(new FileCopier.StatFsProbe());
+        job.setRecovery(installed);
+        job.setVerifier(new CopyVerifier(null));
+        job.setJournal(getJournalFile(), "apply");
+        copier.setTrace(getTraceDir(), "apply");
+        copyFiles( R.string.diag_applying, R.string.toast_applied, sPaths, dPaths, copier);
     }    
 
+    /**
+     * Returns the directory selection profiles are kept in.
+     *
+     * @return Profile directory on the SD card.
+     */
+    private File getProfileDir() {
+        return new File(extStorage + "/SystemApps/profiles");
+    }
+
+    /**
+     * Sets every app to the replacement a saved profile has for it.
+     *
+     * @param name Name of the profile.
+     */
+    private void loadProfile(String name) {
+        SelectionProfile loaded = SelectionProfile.read(
+                SelectionProfile.getFile(getProfileDir(), name));
+        if (loaded == null) {
+            Toast.makeText(this, getString(R.string.toast_profile_unreadable, name),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        profile = loaded;
+        adapter.setPaths(loaded.toPaths(apps, sysAppPaths));
+        Toast.makeText(this, getString(R.string.toast_profile_loaded, name, loaded.size()),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Saves the replacements currently selected as a profile.
+     *
+     * @param name Name of the profile.
+     */
+    private void saveProfile(String name) {
+        SelectionProfile saved = new SelectionProfile(name);
+        for (int position : adapter.getChangedPositions()) {
+            saved.put(apps[position], adapter.getPathAt(position));
+        }
+        try {
+            saved.write(SelectionProfile.getFile(getProfileDir(), name));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save profile: " + e.toString());
+            Toast.makeText(this, getString(R.string.toast_profile_not_saved, name),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        profile = saved;
+        Toast.makeText(this, getString(R.string.toast_profile_saved, name, saved.size()),
+                Toast.LENGTH_SHORT).show();
+    }
+
     /**
      * Copies files from each element in src to the corresponding dst.
      * 
@@ -332,19 +589,217 @@ public class TypeAppFresh extends ListActivity {
      *                          the process is done.
      * @param src            <code>String[]</code> of source paths.
      * @param dst            <code>String</code> of destination paths, same length as src.
+     * @param copier         <code>FileCopier</code> set up for the job, not yet started.
      */
     protected void copyFiles(int dialogTitle, int completedToast,
-                               String[] src, String[] dst) {
+                               String[] src, String[] dst, FileCopier copier) {
         if (src.length != dst.length) {
             Log.e(TAG,"copyApps: src and destination length mismatch. Quitting copy.");
             return;
         }
         
         progressDialogTitle = dialogTitle;
-        fileCopier = new FileCopier(this);
+        fileCopier = copier;
         fileCopier.execute(src, dst, getString(completedToast));
     }
 
+    /**
+     * Reads the backup manifest from /sdcard/SystemApps, or forgets it if there is none.
+     */
+    void loadBackupManifest() {
+        backupManifest = readBackupManifest();
+    }
+
+    /**
+     * Reads the backup manifest of the current backup mode. Safe to call off the UI
+     * thread.
+     *
+     * @return The manifest, or <code>null</code> if there is no usable one.
+     */
+    BackupManifest readBackupManifest() {
+        if (usesBackupStore()) {
+            return getBackupStore().latest();
+        }
+        return BackupManifest.read(
+                new File(extStorage + "/SystemApps/" + BackupManifest.FILE_NAME));
+    }
+
+    /**
+     * Takes the results of the {@link InventoryLoader}.
+     *
+     * @param loaded      The current app listing.
+     * @param manifest    The backup manifest, or <code>null</code>.
+     * @param mkdirFailed Whether the backup directory could not be created.
+     */
+    void onInventoryLoaded(AppInventory loaded, BackupManifest manifest,
+            boolean mkdirFailed) {
+        showInventory(loaded);
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.no_matching_apps);
+        backupManifest = manifest;
+        if (mkdirFailed) {
+            showDialog(DIALOG_MKDIR_FAILED);
+        }
+    }
+
+    /**
+     * Takes the APK metadata looked up by the {@link InventoryLoader}.
+     *
+     * @param loaded The listing the metadata belongs to.
+     * @param index  The index it came from, used to check replacements.
+     */
+    void onMetadataLoaded(AppInventory loaded, MetadataIndex index) {
+        metadataIndex = index;
+        if (loaded == inventory) {
+            adapter.setMetadata(loaded.getMetadata());
+        }
+    }
+
+    /**
+     * Warns if a replacement APK is not a version of the system app it is picked for,
+     * naming the system app it does belong to if there is one. Only the manifest entry of
+     * the APK is read, and only once, off the UI thread.
+     *
+     * @param position Row the APK is picked for.
+     * @param path     Path of the APK.
+     */
+    private void checkReplacement(int position, final String path) {
+        final ApkMetadata system = adapter.getMetadataAt(position);
+        final MetadataIndex index = metadataIndex;
+        if ((system == null) || (index == null)) {
+            return;
+        }
+        new AsyncTask<Void, Void, ApkMetadata>() {
+            @Override
+            protected ApkMetadata doInBackground(Void... params) {
+                return index.get(new File(path));
+            }
+
+            @Override
+            protected void onPostExecute(ApkMetadata picked) {
+                String message = null;
+                if (picked == null) {
+                    message = getString(R.string.toast_not_an_apk, new File(path).getName());
+                } else if (!picked.packageName.equals(system.packageName)) {
+                    int match = adapter.findPackage(picked.packageName);
+                    message = (match >= 0)
+                            ? getString(R.string.toast_package_other_app, picked.packageName,
+                                    apps[match])
+                            : getString(R.string.toast_package_mismatch, picked.packageName,
+                                    system.packageName);
+                }
+                if (message != null) {
+                    // the activity may have been recreated while the APK was read
+                    Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Rebuilds the list from a listing, keeping the selections of apps that are still
+     * in it.
+     *
+     * @param listing The listing to show.
+     */
+    private void showInventory(AppInventory listing) {
+        if (listing == inventory) {
+            return;
+        }
+        String[] oldApps = apps;
+        String[] oldPaths = adapter.getPaths();
+        if (pendingPaths != null) {
+            oldApps = pendingApps;
+            oldPaths = pendingPaths;
+            pendingApps = null;
+            pendingPaths = null;
+        }
+
+        inventory = listing;
+        apps = listing.getApps();
+        sysAppPaths = listing.getSystemPaths();
+        setListAdapter(new AppListAdapter(this, apps));
+        adapter = (AppListAdapter) this.getListAdapter();
+        if (listing.getMetadata() != null) {
+            adapter.setMetadata(listing.getMetadata());
+        }
+        if (filterText.getText().length() > 0) {
+            adapter.setFilter(filterText.getText().toString());
+        }
+
+        // both listings are sorted, so walk them side by side
+        String[] paths = adapter.getPaths().clone();
+        int j = 0;
+        for (int i = 0; (i < oldApps.length) && (i < oldPaths.length); i++) {
+            while ((j < apps.length) && (apps[j].compareTo(oldApps[i]) < 0)) {
+                j++;
+            }
+            if ((j < apps.length) && apps[j].equals(oldApps[i])) {
+                paths[j] = oldPaths[i];
+            }
+        }
+        adapter.setPaths(paths);
+    }
+
+    private int getBackupMode() {
+        return getPreferences(MODE_PRIVATE).getInt(PREF_BACKUP_MODE, BACKUP_FILES);
+    }
+
+    private File getJournalFile() {
+        return new File(getFilesDir(), CopyJournal.FILE_NAME);
+    }
+
+    /**
+     * Finishes a copy job that was cut short when the process last died.
+     */
+    private void resumeJournal() {
+        CopyJournal journal = CopyJournal.read(getJournalFile());
+        if (journal == null) {
+            // cut off before its plan was complete, there is nothing to finish
+            getJournalFile().delete();
+            return;
+        }
+        Log.i(TAG, "Resuming interrupted " + journal.getOperation());
+        FileCopier copier = new FileCopier(this);
+        copier.getJob().setResume(journal);
+        copier.getJob().setSpaceProbe(new FileCopier.StatFsProbe());
+        copier.setTrace(getTraceDir(), "resume");
+        copyFiles(R.string.diag_resuming, R.string.toast_resumed, journal.getSources(),
+                journal.getDestinations(), copier);
+    }
+
+    /**
+     * Drops a copy job that was cut short, leaving its files as they are.
+     */
+    private void discardJournal() {
+        CopyJournal journal = CopyJournal.read(getJournalFile());
+        if (journal == null) {
+            getJournalFile().delete();
+            return;
+        }
+        Log.i(TAG, "Discarding interrupted " + journal.getOperation());
+        if (journal.isWritable("/system")) {
+            // the copies are dropped, but /system still goes back to read-only
+            RemountManager.getInstance().reclaim();
+        }
+        journal.delete();
+    }
+
+    private File getTraceDir() {
+        return new File(extStorage + "/SystemApps/" + Metrics.TRACE_DIR);
+    }
+
+    private boolean usesBackupStore() {
+        int mode = getBackupMode();
+        return (mode == BACKUP_STORE) || (mode == BACKUP_STORE_DELTA);
+    }
+
+    private BackupStore getBackupStore() {
+        BackupStore store = new BackupStore(
+                new File(extStorage + "/SystemApps/" + BackupStore.DIR_NAME));
+        store.setDeltas(getBackupMode() == BACKUP_STORE_DELTA);
+        return store;
+    }
+
     @Override
     protected Dialog onCreateDialog(int id) {
         AlertDialog dialog;
@@ -366,6 +821,120 @@ public class TypeAppFresh extends ListActivity {
             dialog = makeSimpleAlertDialog(android.R.drawable.ic_dialog_alert,
                     R.string.remount_failed_title, R.string.remount_failed_message);
             break;
+        case DIALOG_STORE_FAILED:
+            dialog = makeSimpleAlertDialog(android.R.drawable.ic_dialog_alert,
+                    R.string.store_failed_title, R.string.store_failed_message);
+            break;
+        case DIALOG_ARCHIVE_FAILED:
+            dialog = makeSimpleAlertDialog(android.R.drawable.ic_dialog_alert,
+                    R.string.archive_failed_title, R.string.archive_failed_message);
+            break;
+        case DIALOG_BACKUP_INCOMPLETE:
+            dialog = makeSimpleAlertDialog(android.R.drawable.ic_dialog_alert,
+                    R.string.backup_incomplete_title, R.string.backup_incomplete_message);
+            break;
+        case DIALOG_BACKUP_STALE:
+            dialog = makeSimpleAlertDialog(android.R.drawable.ic_dialog_alert,
+                    R.string.backup_stale_title, R.string.backup_stale_message);
+            break;
+        case DIALOG_BACKUP_MODE:
+            CharSequence[] modes = new CharSequence[] {
+                    getString(R.string.backup_mode_files),
+                    getString(R.string.backup_mode_archive_stored),
+                    getString(R.string.backup_mode_archive_compressed),
+                    getString(R.string.backup_mode_store),
+                    getString(R.string.backup_mode_store_delta) };
+            dialog = (new AlertDialog.Builder(this))
+                .setTitle(R.string.menu_backup_mode)
+                .setItems(modes, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        SharedPreferences.Editor editor
+                                = getPreferences(MODE_PRIVATE).edit();
+                        editor.putInt(PREF_BACKUP_MODE, which);
+                        editor.commit();
+                        loadBackupManifest();
+                    }
+                }
+            ).create();
+            break;
+        case DIALOG_PICK_GENERATION:
+            final BackupStore store = getBackupStore();
+            final List<Long> generations = store.listGenerations();
+            // newest first
+            Collections.reverse(generations);
+            CharSequence[] items = new CharSequence[generations.size()];
+            DateFormat format = DateFormat.getDateTimeInstance();
+            for (int i = 0; i < items.length; i++) {
+                items[i] = format.format(new Date(generations.get(i)));
+            }
+            dialog = (new AlertDialog.Builder(this))
+                .setTitle(R.string.pick_generation_title)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        restoreApps(store.readGeneration(generations.get(which)), store);
+                    }
+                }
+            ).create();
+            break;
+        case DIALOG_PROFILES:
+            final List<String> profiles = SelectionProfile.list(getProfileDir());
+            CharSequence[] choices = new CharSequence[profiles.size() + 1];
+            choices[0] = getString(R.string.profile_save);
+            for (int i = 0; i < profiles.size(); i++) {
+                choices[i + 1] = profiles.get(i);
+            }
+            dialog = (new AlertDialog.Builder(this))
+                .setTitle(R.string.profiles_title)
+                .setItems(choices, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == 0) {
+                            removeDialog(DIALOG_SAVE_PROFILE);
+                            showDialog(DIALOG_SAVE_PROFILE);
+                        } else {
+                            loadProfile(profiles.get(which - 1));
+                        }
+                    }
+                }
+            ).create();
+            break;
+        case DIALOG_SAVE_PROFILE:
+            final EditText nameText = new EditText(this);
+            nameText.setSingleLine(true);
+            if (profile != null) {
+                nameText.setText(profile.getName());
+            }
+            dialog = (new AlertDialog.Builder(this))
+                .setTitle(R.string.profile_save_title)
+                .setView(nameText)
+                .setPositiveButton(R.string.profile_save_ok,
+                        new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        String name = nameText.getText().toString().trim();
+                        if (name.length() > 0) {
+                            saveProfile(name);
+                        }
+                    }
+                }
+            ).create();
+            break;
+        case DIALOG_RESUME:
+            dialog = (new AlertDialog.Builder(this))
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .setTitle(R.string.resume_title)
+                .setMessage(R.string.resume_message)
+                .setPositiveButton(R.string.resume_ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        resumeJournal();
+                    }
+                })
+                .setNegativeButton(R.string.resume_discard,
+                        new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        discardJournal();
+                    }
+                }
+            ).create();
+            break;
         case DIALOG_NEED_REBOOT:
             dialog = (new AlertDialog.Builder(this))
                 .setIcon(android.R.drawable.ic_dialog_alert)
@@ -380,9 +949,6 @@ public class TypeAppFresh extends ListActivity {
                         } catch (IOException e) {
                             Log.e(TAG, e.toString());
                             showDialog(TypeAppFresh.DIALOG_REBOOT_FAILED);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, e.toString());
-                            showDialog(TypeAppFresh.DIALOG_REBOOT_FAILED);
                         }
                     }
                 }
@@ -400,7 +966,8 @@ public class TypeAppFresh extends ListActivity {
             progressDialog = new ProgressDialog(this);
             progressDialog.setTitle(getString(progressDialogTitle));
             progressDialog.setCancelable(false);
-            progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setMessage(getString(R.string.please_wait));
             dialog = progressDialog;
             break;
         default:
@@ -415,6 +982,9 @@ public class TypeAppFresh extends ListActivity {
         switch (id) {
         case DIALOG_PROGRESS:
             dialog.setTitle(progressDialogTitle);
+            // the dialog is reused, start every job as indeterminate until bytes come in
+            ((ProgressDialog)dialog).setIndeterminate(true);
+            ((ProgressDialog)dialog).setProgress(0);
             break;
         }
     }
@@ -443,9 +1013,8 @@ public class TypeAppFresh extends ListActivity {
      * Reboots the system.
      * 
      * @throws IOException If our <code>su</code> process has a problem.
-     * @throws InterruptedException If our <code>su</code> process has a problem.
      */
-    protected void reboot() throws IOException, InterruptedException {
+    protected void reboot() throws IOException {
         // it never actually shows the dialog, though :'/
         showDialog(DIALOG_REBOOT);
 
@@ -456,19 +1025,26 @@ public class TypeAppFresh extends ListActivity {
         
         try {
             Log.i(TAG,"Calling reboot");
-            Process su = FileCopier.getSu();
-            DataOutputStream stream = new DataOutputStream(su.getOutputStream());
-            stream.writeBytes("reboot\nexit\n");
-            stream.flush();
-            su.waitFor();
+            Metrics metrics = Metrics.begin("reboot");
+            metrics.set("model", Build.MODEL);
+            metrics.set("fingerprint", Build.FINGERPRINT);
+            // don't leave /system writable waiting for the grace period
+            RemountManager.getInstance().flush();
+            for (RemountManager.Window window : RemountManager.getInstance().getHistory()) {
+                metrics.span("remount.window", window.start, window.end, null);
+            }
+            metrics.finish();
+            // nothing runs after the reboot command, so the trace goes out first
+            try {
+                metrics.write(getTraceDir());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write trace: " + e.toString());
+            }
+            RootShell.getInstance().run("reboot");
         } catch (IOException e) {
             // get rid of our dialog first and then throw the exception back
             dismissDialog(DIALOG_PROGRESS);
             throw e;
-        } catch (InterruptedException e) {
-            // get rid of our dialog first and then throw the exception back
-            dismissDialog(DIALOG_PROGRESS);
-            throw e;
         }
         
         if (progressDialog.isShowing()) {